@@ -0,0 +1,163 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <BitmapPool.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+
+/*
+ * Pool of mutable bitmaps, so repainting an image or showing the next 
+ * slice of the same size rewrites the pixels of a released bitmap with 
+ * setPixels instead of allocating a new one. Released bitmaps are kept up 
+ * to a limit of bytes, the oldest ones are dropped first. 
+ * The allocation and reuse counters allow to check that steady state 
+ * scrolling and windowing allocate no bitmaps.
+ */
+public class BitmapPool {
+
+	private static final BitmapPool sharedPool = new BitmapPool(8 * 1024 * 1024);
+	
+	private final ArrayList<Bitmap> free = new ArrayList<Bitmap>();
+	private final long maxBytes;
+	private long pooledBytes = 0;
+	
+	private long allocationCount = 0;
+	private long allocatedBytes = 0;
+	private long reuseCount = 0;
+	
+	
+	public BitmapPool(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+	
+	
+	public static BitmapPool getSharedPool()
+	{
+		return sharedPool;
+	}
+	
+	
+	public static int getBytesPerPixel(Bitmap.Config config)
+	{
+		if(config == Bitmap.Config.ALPHA_8)return 1;
+		if(config == Bitmap.Config.ARGB_8888)return 4;
+		return 2;
+	}
+	
+	
+	/*
+	 * returns a released bitmap of the given size and configuration, or a 
+	 * new one if there is none; its pixels are undefined
+	 */
+	public synchronized Bitmap acquire(int width, int height, Bitmap.Config config)
+	{
+		for(int i = free.size() - 1; i >= 0; i--)
+		{
+			Bitmap bitmap = free.get(i);
+			if(bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config)
+			{
+				free.remove(i);
+				pooledBytes -= sizeOf(bitmap);
+				reuseCount++;
+				return bitmap;
+			}
+		}
+		Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+		allocationCount++;
+		allocatedBytes += (long) width * height * getBytesPerPixel(config);
+		return bitmap;
+	}
+	
+	
+	/*
+	 * hands a bitmap that is no longer drawn back to the pool
+	 */
+	public synchronized void release(Bitmap bitmap)
+	{
+		if(bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())return;
+		long size = sizeOf(bitmap);
+		if(size > maxBytes)return;
+		for(int i = 0; i < free.size(); i++)
+		{
+			if(free.get(i) == bitmap)return;
+		}
+		free.add(bitmap);
+		pooledBytes += size;
+		// dropped bitmaps are left to the garbage collector
+		while(pooledBytes > maxBytes)
+		{
+			pooledBytes -= sizeOf(free.remove(0));
+		}
+	}
+	
+	
+	public synchronized void clear()
+	{
+		free.clear();
+		pooledBytes = 0;
+	}
+	
+	
+	private static long sizeOf(Bitmap bitmap)
+	{
+		return (long) bitmap.getWidth() * bitmap.getHeight() * getBytesPerPixel(bitmap.getConfig());
+	}
+	
+	
+	/*
+	 * number of bitmaps allocated by acquire
+	 */
+	public synchronized long getAllocationCount()
+	{
+		return allocationCount;
+	}
+	
+	public synchronized long getAllocatedBytes()
+	{
+		return allocatedBytes;
+	}
+	
+	/*
+	 * number of released bitmaps handed out again by acquire
+	 */
+	public synchronized long getReuseCount()
+	{
+		return reuseCount;
+	}
+	
+	public synchronized void resetStatistics()
+	{
+		allocationCount = 0;
+		allocatedBytes = 0;
+		reuseCount = 0;
+	}
+	
+	public synchronized int size()
+	{
+		return free.size();
+	}
+}
@@ -0,0 +1,437 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <CinePlayer.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+
+import android.os.Handler;
+import android.os.Message;
+
+/*
+ * Plays the frames of a multi-frame image or the images of a stack as a 
+ * movie. A decoder thread renders the frames ahead of display into a 
+ * bounded ring buffer; this thread takes them out at the frame rate and 
+ * sends each as PROGRESSION_UPDATE message with the frame index as arg1 
+ * and a TileRenderer holding the preview as obj. 
+ * Playback follows the clock: frames that are due while the decoder is 
+ * behind are dropped, the decoder skips frames that would be late, so a 
+ * slow device shows fewer frames instead of lagging. Window, inversion 
+ * and brightness/contrast are taken over from the template image for 
+ * every frame, so they can be changed while playing.
+ */
+public class CinePlayer extends Thread 
+{
+	
+	// frames rendered ahead of display
+	private static final int RING_SIZE = 4;
+	
+	// used if the header gives no frame rate
+	public static final double DEFAULT_FRAME_RATE = 10.;
+	
+	private final Handler mHandler;
+	private final ImageGray16Bit template;
+	private final FrameReader frameReader;
+	private final File[] files;
+	// stack: headers and pixel data positions of the files, may be null
+	private final DicomIndex index;
+	private final int frameCount;
+	private final double frameRate;
+	// compressed frames are decoded reduced to the size of the preview
+	private final int previewScale;
+	// multi-frame RLE: frames decoded together, so that the segments of 
+	// several frames are decoded in parallel; used by the decoder thread only
+	private final int batchSize;
+	private int batchFirst = 0;
+	private short[][] batch = null;
+	
+	private final ArrayBlockingQueue<Frame> ring = new ArrayBlockingQueue<Frame>(RING_SIZE);
+	private final Thread decoder;
+	private volatile boolean playing = true;
+	
+	// sequence number of the frame due for display, counts on over loops
+	private volatile long dueSequence = 0;
+	
+	// metrics
+	private volatile long shownFrames = 0;
+	private volatile long lateFrames = 0;
+	private volatile long skippedFrames = 0;
+	private volatile long failedFrames = 0;
+	private volatile long decodedFrames = 0;
+	private volatile long decodeNanos = 0;
+	private volatile long startNanos = 0;
+	
+	
+	private static final class Frame
+	{
+		final long sequence;
+		final TileRenderer renderer;
+		
+		Frame(long sequence, TileRenderer renderer)
+		{
+			this.sequence = sequence;
+			this.renderer = renderer;
+		}
+	}
+	
+	
+	/*
+	 * plays the frames of a multi-frame image
+	 */
+	public CinePlayer(Handler handler, ImageGray16Bit template, FrameReader frameReader) 
+	{
+		this(handler, template, frameReader, null, null);
+	}
+	
+	
+	/*
+	 * plays the images of a stack, one frame per file; the files are 
+	 * opened from their index entries if an index is given
+	 */
+	public CinePlayer(Handler handler, ImageGray16Bit template, File[] files, DicomIndex index) 
+	{
+		this(handler, template, null, files, index);
+	}
+	
+	
+	private CinePlayer(Handler handler, ImageGray16Bit template, FrameReader frameReader, File[] files, DicomIndex index) 
+	{
+		if (handler == null)
+			throw new NullPointerException("The handler is null while calling the cine thread.");
+		if (template == null)
+			throw new NullPointerException("The image is null while calling the cine thread.");
+		
+		mHandler = handler;
+		this.template = template;
+		this.frameReader = frameReader;
+		this.files = files;
+		this.index = index;
+		previewScale = new TileRenderer(template).getPreviewSubsample();
+		if(frameReader != null)
+		{
+			frameCount = frameReader.getFrameCount();
+			double rate = DicomReader.getFrameRate(frameReader.getHeader());
+			frameRate = rate > 0. ? rate : DEFAULT_FRAME_RATE;
+			batchSize = isBatchDecodable(frameReader) 
+					? Math.min(RING_SIZE, Runtime.getRuntime().availableProcessors()) : 1;
+		}
+		else
+		{
+			frameCount = files == null ? 0 : files.length;
+			frameRate = DEFAULT_FRAME_RATE;
+			batchSize = 1;
+		}
+		decoder = new Thread(new Runnable() 
+		{
+			public void run()
+			{
+				decode();
+			}
+		}, "CineDecoder");
+		decoder.setDaemon(true);
+		setDaemon(true);
+	}
+	
+	
+	public int getFrameCount()
+	{
+		return frameCount;
+	}
+	
+	
+	public double getFrameRate()
+	{
+		return frameRate;
+	}
+	
+	
+	public void stopPlaying()
+	{
+		playing = false;
+		interrupt();
+		decoder.interrupt();
+	}
+	
+	
+	public boolean isPlaying()
+	{
+		return playing;
+	}
+	
+	
+	public void run()
+	{
+		if(frameCount < 1)
+		{
+			playing = false;
+			return;
+		}
+		final long interval = (long) (1e9 / frameRate);
+		decoder.start();
+		Frame frame = null;
+		try
+		{
+			// the clock starts with the first frame
+			while(playing && frame == null)
+			{
+				frame = ring.poll(100, TimeUnit.MILLISECONDS);
+			}
+			startNanos = System.nanoTime();
+			while(playing)
+			{
+				long due = (System.nanoTime() - startNanos) / interval;
+				dueSequence = due;
+				if(frame == null)frame = ring.poll();
+				// the newest frame that is due is shown, older ones are dropped
+				Frame next = frame == null ? null : ring.peek();
+				while(next != null && next.sequence <= due)
+				{
+					frame.renderer.release();
+					lateFrames++;
+					frame = ring.poll();
+					next = ring.peek();
+				}
+				if(frame != null && frame.sequence <= due)
+				{
+					shownFrames++;
+					Message message = mHandler.obtainMessage();
+					message.what = MinimalDicomViewer.PROGRESSION_UPDATE;
+					message.arg1 = (int) (frame.sequence % frameCount);
+					message.obj = frame.renderer;
+					mHandler.sendMessage(message);
+					frame = null;
+				}
+				long wait = startNanos + (due + 1) * interval - System.nanoTime();
+				if(wait > 0)Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+		}
+		catch(InterruptedException ex)
+		{
+			// stopped
+		}
+		finally
+		{
+			playing = false;
+			decoder.interrupt();
+			for(; frame != null; frame = ring.poll())
+			{
+				frame.renderer.release();
+			}
+		}
+	}
+	
+	
+	private void decode()
+	{
+		long sequence = 0;
+		final long interval = (long) (1e9 / frameRate);
+		try
+		{
+			while(playing)
+			{
+				// frames that would be late when decoded are skipped
+				long decoded = decodedFrames;
+				long ready = System.nanoTime() + (decoded == 0 ? 0 : decodeNanos / decoded);
+				long due = (ready - startNanos) / interval;
+				if(startNanos != 0 && sequence < due)
+				{
+					skippedFrames += due - sequence;
+					sequence = due;
+				}
+				long start = System.nanoTime();
+				TileRenderer renderer = render((int) (sequence % frameCount));
+				decodeNanos += System.nanoTime() - start;
+				decodedFrames++;
+				if(renderer == null)
+				{
+					sequence++;
+					continue;
+				}
+				Frame frame = new Frame(sequence++, renderer);
+				// blocks while the ring is full
+				boolean queued = false;
+				while(playing && !queued)
+				{
+					queued = ring.offer(frame, 100, TimeUnit.MILLISECONDS);
+					// the frame became late while waiting
+					if(!queued && frame.sequence < dueSequence)break;
+				}
+				if(!queued)
+				{
+					renderer.release();
+					skippedFrames++;
+				}
+				else if(!playing && ring.remove(frame))
+				{
+					renderer.release();
+				}
+			}
+		}
+		catch(InterruptedException ex)
+		{
+			// stopped
+		}
+	}
+	
+	
+	private TileRenderer render(int index)
+	{
+		try
+		{
+			DicomReader reader;
+			if(frameReader == null)
+				reader = new DicomReader(openFileReader(index), 0, previewScale);
+			else if(batchSize > 1)
+				reader = new DicomReader(frameReader, index, getBatchFrame(index));
+			else
+				reader = new DicomReader(frameReader, index, previewScale);
+			// the window is taken over from the template
+			ImageGray16Bit image = reader.getImage(false);
+			if(image == null)return null;
+			image.getWindowLevelEngine().setDisplaySettings(template.getWindowLevelEngine());
+			TileRenderer renderer = new TileRenderer(image);
+			return renderer.createPreview() == null ? null : renderer;
+		}
+		catch(IOException ex)
+		{
+			// unreadable frames are skipped
+			failedFrames++;
+			ex.printStackTrace();
+			return null;
+		}
+		catch(CancellationException ex)
+		{
+			// stopped while decoding
+			return null;
+		}
+		catch(RuntimeException ex)
+		{
+			failedFrames++;
+			ex.printStackTrace();
+			return null;
+		}
+	}
+	
+	
+	private static boolean isBatchDecodable(FrameReader frameReader)
+	{
+		DicomObject header = frameReader.getHeader();
+		int samplesPerPixel = header.getInt(Tag.SamplesPerPixel, 1);
+		return frameReader.getFrameCount() > 1 && frameReader.isEncapsulated()
+				&& UID.RLELossless.equals(frameReader.getTransferSyntaxUID())
+				&& (samplesPerPixel == 1 || samplesPerPixel == 3)
+				&& PixelDecoderRegistry.canDecode(UID.RLELossless, header.getInt(Tag.BitsAllocated, 16), samplesPerPixel);
+	}
+	
+	
+	/*
+	 * the samples of the given frame, decoded with the following frames up 
+	 * to the batch size if it is not in the last batch; new rasters are 
+	 * allocated for each batch, as the frames of the last one may still 
+	 * be waiting for display
+	 */
+	private short[] getBatchFrame(int index) throws IOException
+	{
+		if(batch == null || index < batchFirst || index >= batchFirst + batch.length)
+		{
+			batch = null;
+			ByteBuffer[] frames = new ByteBuffer[Math.min(batchSize, frameCount - index)];
+			for(int i = 0; i < frames.length; i++)
+			{
+				frames[i] = frameReader.getFrame(index + i);
+				if(frames[i] == null)throw new IOException("Frame " + (index + i) + " not found");
+			}
+			DicomObject header = frameReader.getHeader();
+			batch = RleDecoder.decode(frames, header.getInt(Tag.Columns), header.getInt(Tag.Rows), 
+					header.getInt(Tag.SamplesPerPixel, 1), header.getInt(Tag.BitsAllocated, 16));
+			batchFirst = index;
+		}
+		return batch[index - batchFirst];
+	}
+	
+	
+	/*
+	 * a stack file is mapped for one frame only, a long stack would 
+	 * otherwise hold a mapping per file; the mapping is dropped with the 
+	 * frame once it has been shown
+	 */
+	private FrameReader openFileReader(int fileIndex) throws IOException
+	{
+		DicomIndex.Instance instance = index == null ? null : index.getInstance(files[fileIndex]);
+		return instance != null ? new FrameReader(instance) : new FrameReader(files[fileIndex].getAbsolutePath());
+	}
+	
+	
+	/*
+	 * frames shown per second since playback started
+	 */
+	public double getAchievedFrameRate()
+	{
+		long elapsed = System.nanoTime() - startNanos;
+		return startNanos == 0 || elapsed <= 0 ? 0. : shownFrames * 1e9 / elapsed;
+	}
+	
+	
+	/*
+	 * mean time to read and render a frame in milliseconds
+	 */
+	public double getAverageDecodeMillis()
+	{
+		long decoded = decodedFrames;
+		return decoded == 0 ? 0. : decodeNanos / 1e6 / decoded;
+	}
+	
+	
+	public long getShownFrameCount()
+	{
+		return shownFrames;
+	}
+	
+	
+	/*
+	 * frames skipped by the decoder or delivered too late for display
+	 */
+	public long getDroppedFrameCount()
+	{
+		return lateFrames + skippedFrames;
+	}
+	
+	
+	/*
+	 * frames that could not be read or decoded, not counted as dropped
+	 */
+	public long getFailedFrameCount()
+	{
+		return failedFrames;
+	}
+}
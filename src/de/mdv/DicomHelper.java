@@ -25,13 +25,82 @@
 package de.mdv;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
+import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.SequenceDicomElement;
+import org.dcm4che2.data.SortedDicomObject;
 import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+import org.dcm4che2.util.CloseUtils;
 
 public class DicomHelper {
+	
+	// minimum number of pixels converted by one thread
+	private static final int PIXELS_PER_BAND = 16 * 1024;
+	
+	/*
+	 * read the file meta information and the data set until the first top 
+	 * level element with a tag greater or equal to stopTag; the elements are 
+	 * kept in compact sorted arrays and equal values (UIDs, patient data, ...) 
+	 * are shared with previously read headers, as headers are often held in 
+	 * memory in large numbers
+	 */
+	public static DicomObject readHeader(String fileName, int stopTag) throws IOException
+	{
+		DicomInputStream dis = new DicomInputStream(new File(fileName));
+		try
+		{
+			return readHeader(dis, stopTag);
+		}
+		finally
+		{
+			CloseUtils.safeClose(dis);
+		}
+	}
+	
+	
+	/*
+	 * same as above for an already opened stream, which is left positioned 
+	 * behind the header of the stop tag element
+	 */
+	public static DicomObject readHeader(DicomInputStream dis, int stopTag) throws IOException
+	{
+		dis.setHandler(new StopTagInputHandler(stopTag));
+		SortedDicomObject dcmObj = new SortedDicomObject();
+		dis.readDicomObject(dcmObj, -1);
+		dcmObj.trimToSize();
+		dcmObj.shareElements();
+		return dcmObj;
+	}
+	
+	
+	/*
+	 * read only the file meta information (group 0002), returns an empty 
+	 * object for files without file meta information
+	 */
+	public static DicomObject readFileMetaInformation(String fileName) throws IOException
+	{
+		DicomInputStream dis = new DicomInputStream(new File(fileName));
+		try
+		{
+			DicomObject dcmObj = new BasicDicomObject();
+			dis.readFileMetaInformation(dcmObj);
+			return dcmObj;
+		}
+		finally
+		{
+			CloseUtils.safeClose(dis);
+		}
+	}
+	
 
 	public static byte[] readPixelData(DicomObject dcmObj)
 	{
@@ -71,137 +140,93 @@ public class DicomHelper {
 	
 	
 	/*
-	 * switch the grayscale of the pixels 
+	 * read the stored pixel values of a byte[] with little endian byte order
 	 */
-	public static int[] invertPixels(int pixelData[])
+	public static short[] readRaster(byte bytePixels[], int bitsAllocated, int width, int height)
 	{
-		if(pixelData == null)return pixelData;
-		for(int i = 0; i < pixelData.length; i++)
-		{
-			int pixelGrayLevel = pixelData[i] & 0xff;
-			pixelGrayLevel = 255 - pixelGrayLevel;
-			pixelData[i] = (0xFF << 24) | // alpha
-			(pixelGrayLevel << 16) | // red
-			(pixelGrayLevel << 8) | // green
-			pixelGrayLevel; // blue
-		}
-		return pixelData;
+		if(bytePixels == null)return null;
+		return readRaster(ByteBuffer.wrap(bytePixels).order(ByteOrder.LITTLE_ENDIAN), bitsAllocated, width, height);
 	}
 	
 	
-	public static int[] setBrightnessAndContrast(int pixelData[], int brightness, int contrast)
+	/*
+	 * returns the stored pixel values of the given buffer - 16 bit values 
+	 * are returned as view of the buffer in its byte order, so pixel data 
+	 * read from a memory mapped file is not copied into the java heap 
+	 * whatever the size of the image; 8 and 12 bit values are unpacked 
+	 * into a short[] raster
+	 */
+	public static ShortBuffer readPixels(ByteBuffer bytePixels, int bitsAllocated, int width, int height)
 	{
-		LUTable lut = new LUTable();
-		
-		double contrastVal = Math.pow(contrast/127., 2);
-		lut.setContrast(contrastVal);
-		lut.setBrightness(256 - brightness);
-		
-		if(pixelData == null)return pixelData;
-		for(int i = 0; i < pixelData.length; i++)
-    	{
-			int gray = pixelData[i] & 0xffffffff;
-						
-			int red 	= (gray >> 16) & 0xff;
-			int green 	= (gray >> 8) & 0xff;
-			int blue 	= gray & 0xff;
-
-			red = lut.getValue(red);
-			green = lut.getValue(green);
-			blue = lut.getValue(blue);
-    		
-			pixelData[i] = (0xFF << 24) | 
-			(red << 16) | 
-			(green << 8) | 
-			blue; 
-    	}
-		return pixelData;
+		if(bytePixels == null || width < 1 || height < 1)return null;
+		final int size = width * height;
+		if(bitsAllocated == 16 && bytePixels.limit() / 2 >= size)
+		{
+			ByteBuffer view = bytePixels.duplicate().order(bytePixels.order());
+			view.position(0);
+			view.limit(size * 2);
+			return view.asShortBuffer();
+		}
+		return ShortBuffer.wrap(readRaster(bytePixels, bitsAllocated, width, height));
 	}
 	
 	
 	/*
-	 * prepare for painting: convert a given byte[] to int[]
+	 * read the stored pixel values between position 0 and the limit of the 
+	 * given buffer into a short[] raster, 16 bit values in the byte order of 
+	 * the buffer; the buffer is accessed by absolute index only, so its 
+	 * position is left unchanged
 	 */
-	public static int[] convertToIntPixelData(byte bytePixels[], int bitsAllocated, int width, int height, boolean invert)
+	public static short[] readRaster(final ByteBuffer bytePixels, int bitsAllocated, int width, int height)
 	{
-		int outputPixels[] = null;
-		// TODO show Memory Error Dialog
-		// actually we do not accept byte data exceeding 4MB
-		if(width * height * 4 > 4*1024*1024)return outputPixels;
-		if(bytePixels == null || width < 1 || height < 1)return outputPixels;
-		outputPixels = new int[width * height];
-		int pixelGrayLevel = 0;
-		int pixelGrayLevel2 = 0;
-		int max = 0;
-		int min = 65530;
-		for(int i = 0; i < bytePixels.length; i++)
+		if(bytePixels == null || width < 1 || height < 1)return null;
+		final int size = width * height;
+		final short raster[] = new short[size];
+		final int limit = bytePixels.limit();
+		// the pixels are converted in parallel bands by a loop specialized 
+		// for the bit depth
+		if(bitsAllocated == 16)
 		{
-			if(bitsAllocated == 16)
+			ParallelBands.execute(Math.min(size, limit / 2), PIXELS_PER_BAND, new ParallelBands.Task() 
 			{
-				int intPixelLevel = (bytePixels[i+1] & 0xff) << 8 | (bytePixels[i] & 0xff);
-				if(intPixelLevel > max)max = intPixelLevel;
-				if(intPixelLevel < min)min = intPixelLevel;
-				i++;
-			}
-			else if(bitsAllocated == 12)
-			{
-				int intPixelLevel = (bytePixels[i+2] & 0xff) <<  8 | (bytePixels[i+1] & 0xf0);
-				int intPixelLevel2 = (bytePixels[i+1] & 0x0f) << 8 | (bytePixels[i] & 0xff);
-				if(intPixelLevel > max)max = intPixelLevel;
-				if(intPixelLevel < min)min = intPixelLevel;
-				if(intPixelLevel2 > max)max = intPixelLevel2;
-				if(intPixelLevel2 < min)min = intPixelLevel2;
-				i+=2;
-			}
+				public void run(int first, int end, int band)
+				{
+					for(int j = first; j < end; j++)
+					{
+						raster[j] = bytePixels.getShort(2 * j);
+					}
+				}
+			});
 		}
-		int windowWidth = max - min;
-		int windowOffset = min;
-		for(int i = 0, j = 0; i < bytePixels.length; i++)
+		else if(bitsAllocated == 12)
 		{
-			if(bitsAllocated == 16)
-			{
-				int intPixelLevel = (bytePixels[i+1] & 0xff) << 8 | (bytePixels[i] & 0xff);
-				
-				pixelGrayLevel = (256 * (intPixelLevel - windowOffset) / windowWidth);
-				pixelGrayLevel = (pixelGrayLevel > 255) ? 255 : ((pixelGrayLevel < 0) ? 0 : pixelGrayLevel);
-				if(invert)pixelGrayLevel = 255 - pixelGrayLevel;
-				i++;
-				outputPixels[j++] = (0xFF << 24) | // alpha
-    			(pixelGrayLevel << 16) | // red
-    			(pixelGrayLevel << 8) | // green
-    			pixelGrayLevel; // blue
-			}
-			else if(bitsAllocated == 12)
+			// two pixels packed into three bytes, bands of pixel pairs
+			ParallelBands.execute(Math.min(size / 2, limit / 3), PIXELS_PER_BAND / 2, new ParallelBands.Task() 
 			{
-				int intPixelLevel = (bytePixels[i+2] & 0xff) <<  8 | (bytePixels[i+1] & 0xf0);
-				int intPixelLevel2 = (bytePixels[i+1] & 0x0f) << 8 | (bytePixels[i] & 0xff);
-				pixelGrayLevel = 128 * (intPixelLevel - windowOffset) / windowWidth;
-				pixelGrayLevel = (pixelGrayLevel > 255) ? 255 : ((pixelGrayLevel < 0) ? 0 : pixelGrayLevel);
-				pixelGrayLevel2 = 128 * (intPixelLevel2 - windowOffset) / windowWidth;
-				pixelGrayLevel2 = (pixelGrayLevel2 > 255) ? 255 : ((pixelGrayLevel2 < 0) ? 0 : pixelGrayLevel2);
-				
-				i+=2;
-				
-				outputPixels[j++] = (0xFF << 24) | // alpha
-    			(pixelGrayLevel2 << 16) | // red
-    			(pixelGrayLevel2 << 8) | // green
-    			pixelGrayLevel2; // blue
-				
-				outputPixels[j++] = (0xFF << 24) | // alpha
-    			(pixelGrayLevel << 16) | // red
-    			(pixelGrayLevel << 8) | // green
-    			pixelGrayLevel; // blue
-			}
-			else
+				public void run(int first, int end, int band)
+				{
+					for(int pair = first, i = 3 * first, j = 2 * first; pair < end; pair++, i += 3)
+					{
+						int b1 = bytePixels.get(i+1) & 0xff;
+						raster[j++] = (short) ((b1 & 0x0f) << 8 | (bytePixels.get(i) & 0xff));
+						raster[j++] = (short) ((bytePixels.get(i+2) & 0xff) << 4 | b1 >> 4);
+					}
+				}
+			});
+		}
+		else
+		{
+			ParallelBands.execute(Math.min(size, limit), PIXELS_PER_BAND, new ParallelBands.Task() 
 			{
-				pixelGrayLevel = bytePixels[i] & 0xff;// > 0 ? bytePixels[i] : 255 - bytePixels[i];
-				
-				outputPixels[j++] = (0xFF << 24) | // alpha
-    			(pixelGrayLevel << 16) | // red
-    			(pixelGrayLevel << 8) | // green
-    			pixelGrayLevel; // blue
-			}
+				public void run(int first, int end, int band)
+				{
+					for(int i = first; i < end; i++)
+					{
+						raster[i] = (short) (bytePixels.get(i) & 0xff);
+					}
+				}
+			});
 		}
-		return outputPixels;
+		return raster;
 	}
 }
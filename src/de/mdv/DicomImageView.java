@@ -27,6 +27,7 @@ package de.mdv;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.PointF;
 import android.util.AttributeSet;
@@ -41,6 +42,7 @@ public class DicomImageView extends ImageView{
 	Matrix matrix = new Matrix();
 	private Context context;
 	ImageGray16Bit image;
+	TileRenderer tileRenderer;
 	GestureDetector gestureDetector;
 	
 	// We can be in one of these 3 states
@@ -109,27 +111,55 @@ public class DicomImageView extends ImageView{
 	
 	public void draw()
 	{
-		if(image != null && image.getImageData() != null)
+		if(image != null && image.hasPixels())
 		{
-			Bitmap imageBitmap = Bitmap.createBitmap(image.getImageData(), image.getWidth(), image.getHeight(), Bitmap.Config.ARGB_8888);
-			// Set the image
-			setImageBitmap(imageBitmap);
+			// large images are shown as reduced preview, the visible part 
+			// is drawn from full resolution tiles when zooming in
+			TileRenderer renderer = new TileRenderer(image);
+			renderer.createPreview();
+			setTileRenderer(renderer);
 		}
 	}
 	
 	
+	/*
+	 * shows the preview of the given renderer, e.g. one rendered in the 
+	 * background by the RenderScheduler
+	 */
+	public void setTileRenderer(TileRenderer renderer)
+	{
+		if(renderer == null || renderer.getPreview() == null)return;
+		TileRenderer previous = tileRenderer;
+		tileRenderer = renderer;
+		setMaxZoom(5f * renderer.getPreviewSubsample());
+		// Set the image
+		setImageBitmap(renderer.getPreview());
+		// the bitmaps of the previous renderer are no longer drawn
+		if(previous != null)previous.release();
+	}
+	
+	
 	public void drawWithMatrix()
 	{
-		if(image != null && image.getImageData() != null)
+		if(image != null && image.hasPixels())
 		{
-			Bitmap imageBitmap = Bitmap.createBitmap(image.getImageData(), image.getWidth(), image.getHeight(), Bitmap.Config.ARGB_8888);
-			// Set the image
-			setImageBitmap(imageBitmap);
+			draw();
 			setImageMatrix(matrix);
 		}
 	}
 	
 	
+	@Override
+	protected void onDraw(Canvas canvas)
+	{
+		super.onDraw(canvas);
+		if(tileRenderer != null)
+		{
+			tileRenderer.drawVisibleTiles(canvas, cachedMatrix, getWidth(), getHeight());
+		}
+	}
+	
+	
 	public void setImage(ImageGray16Bit image)
 	{
 		this.image = image;
@@ -204,9 +234,10 @@ public class DicomImageView extends ImageView{
 	
 	public void paintCachedSize()
 	{
-		// Get the image width and height
-		int imageWidth = image.getWidth();
-		int imageHeight = image.getHeight();
+		// Get the width and height of the shown bitmap, a large image is 
+		// shown as reduced preview
+		float imageWidth = bmWidth;
+		float imageHeight = bmHeight;
 		
 		// Compute the translation
 		float dx = ((float) getMeasuredWidth() - imageWidth) / 2f;
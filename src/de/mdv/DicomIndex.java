@@ -0,0 +1,229 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <DicomIndex.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+
+/*
+ * in-memory index Study -> Series -> Instance built by the SeriesIndexer;
+ * instances are added concurrently by the worker threads, the index is 
+ * handed out when all of them are finished
+ */
+public class DicomIndex 
+{
+	
+	private final File source;
+	private final Map<String, Study> studies = new LinkedHashMap<String, Study>();
+	private final Map<File, Instance> instances = new HashMap<File, Instance>();
+	
+	
+	public DicomIndex(File source)
+	{
+		this.source = source;
+	}
+	
+	
+	/*
+	 * the directory or DICOMDIR the index was built from
+	 */
+	public File getSource()
+	{
+		return source;
+	}
+	
+	
+	/*
+	 * returns the series, which contains the given file, or null
+	 */
+	public synchronized Series findSeries(File file)
+	{
+		Instance instance = instances.get(file);
+		return instance == null ? null : instance.series;
+	}
+	
+	
+	/*
+	 * returns the instance of the given file, or null
+	 */
+	public synchronized Instance getInstance(File file)
+	{
+		return instances.get(file);
+	}
+	
+	
+	public synchronized int size()
+	{
+		return instances.size();
+	}
+	
+	
+	synchronized void add(Instance instance)
+	{
+		DicomObject header = instance.header;
+		String studyUID = header.getString(Tag.StudyInstanceUID, "");
+		Study study = studies.get(studyUID);
+		if(study == null)
+		{
+			study = new Study();
+			studies.put(studyUID, study);
+		}
+		String seriesUID = header.getString(Tag.SeriesInstanceUID, "");
+		Series series = study.series.get(seriesUID);
+		if(series == null)
+		{
+			series = new Series(seriesUID, header);
+			study.series.put(seriesUID, series);
+		}
+		series.instances.add(instance);
+		instance.series = series;
+		instances.put(instance.file, instance);
+	}
+	
+	
+	// series are grouped by study, as series UIDs need only be unique within it
+	private static class Study
+	{
+		private final Map<String, Series> series = new LinkedHashMap<String, Series>();
+	}
+	
+	
+	public static class Series
+	{
+		private final String seriesInstanceUID;
+		private final String seriesDescription;
+		private final String modality;
+		private final int seriesNumber;
+		private final List<Instance> instances = new ArrayList<Instance>();
+		
+		Series(String seriesInstanceUID, DicomObject header)
+		{
+			this.seriesInstanceUID = seriesInstanceUID;
+			this.seriesDescription = header.getString(Tag.SeriesDescription, "");
+			this.modality = header.getString(Tag.Modality, "");
+			this.seriesNumber = header.getInt(Tag.SeriesNumber, 0);
+		}
+		
+		public String getSeriesInstanceUID()
+		{
+			return seriesInstanceUID;
+		}
+		
+		public String getSeriesDescription()
+		{
+			return seriesDescription;
+		}
+		
+		public String getModality()
+		{
+			return modality;
+		}
+		
+		public int getSeriesNumber()
+		{
+			return seriesNumber;
+		}
+		
+		public List<Instance> getInstances()
+		{
+			return Collections.unmodifiableList(instances);
+		}
+	}
+	
+	
+	public static class Instance
+	{
+		private final File file;
+		private final DicomObject header;
+		private final String transferSyntaxUID;
+		private final long pixelDataOffset;
+		private final int pixelDataLength;
+		private Series series;
+		
+		Instance(File file, DicomObject header, String transferSyntaxUID, long pixelDataOffset, int pixelDataLength)
+		{
+			this.file = file;
+			this.header = header;
+			this.transferSyntaxUID = transferSyntaxUID;
+			this.pixelDataOffset = pixelDataOffset;
+			this.pixelDataLength = pixelDataLength;
+		}
+		
+		public File getFile()
+		{
+			return file;
+		}
+		
+		/*
+		 * all attributes in front of the pixel data
+		 */
+		public DicomObject getHeader()
+		{
+			return header;
+		}
+		
+		public String getSOPInstanceUID()
+		{
+			return header.getString(Tag.SOPInstanceUID);
+		}
+		
+		public int getInstanceNumber()
+		{
+			return header.getInt(Tag.InstanceNumber, 0);
+		}
+		
+		/*
+		 * transfer syntax the data set was read with
+		 */
+		public String getTransferSyntaxUID()
+		{
+			return transferSyntaxUID;
+		}
+		
+		/*
+		 * file offset of the pixel data value, -1 if the file has no pixel data
+		 */
+		public long getPixelDataOffset()
+		{
+			return pixelDataOffset;
+		}
+		
+		/*
+		 * length of the pixel data value, -1 for encapsulated (compressed) pixel data
+		 */
+		public int getPixelDataLength()
+		{
+			return pixelDataLength;
+		}
+	}
+}
@@ -24,20 +24,47 @@
  */
 package de.mdv;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.CancellationException;
 
-import org.dcm4che2.data.BasicDicomObject;
-import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
 
 public class DicomReader {
 
-	
-	BasicDicomObject bdo;
-	DicomInputStream dis;
-	int pixelData[] = null;
+	DicomObject bdo;
+	FrameReader frameReader;
+	int frameIndex = 0;
+	// factor by which a compressed frame may be and was reduced
+	int maxScale = 1;
+	int scale = 1;
+	// samples of the frame, if it was decoded by the caller
+	short[] decodedFrame = null;
+	ShortBuffer pixels = null;
 	int width, height;
+	int bitsStored, pixelRepresentation;
+	double rescaleSlope = 1., rescaleIntercept = 0.;
+	boolean monochrome1 = false;
+	String modality = "";
+	
+	// Modality LUT: data, first mapped stored value
+	int[] modalityLut = null;
+	int modalityLutFirst = 0;
+	String voiLutFunction = null;
+	
+	// Pixel Padding Value and Pixel Padding Range Limit as stored values
+	int[] pixelPadding = null;
+	
+	// windows and VOI LUTs of the header, the first one is the default
+	List<WindowPreset> headerPresets = new ArrayList<WindowPreset>();
 	
 	String PatientName = "";
 	String PatientPrename = "";
@@ -46,20 +73,75 @@ public class DicomReader {
 	
 	public DicomReader(String fileName)
 	{
-		this.init(fileName);
+		this(fileName, 0);
 	}
 	
 	
-	private void init(String fileName)
+	/*
+	 * reads the given frame of a multi-frame image, only the bytes of 
+	 * that frame are accessed
+	 */
+	public DicomReader(String fileName, int frameIndex)
 	{
+		this.frameIndex = frameIndex;
 		try
 		{
-			bdo = new BasicDicomObject();
-			dis = new DicomInputStream(new java.io.BufferedInputStream(new java.io.FileInputStream(fileName)));
-			dis.readDicomObject(bdo, -1);
+			// the header is parsed up to the pixel data, the frame is 
+			// referenced in a memory mapping instead of being copied into 
+			// the heap
+			this.init(new FrameReader(fileName));
+		}
+		catch(IOException ex)
+		{
+			ex.printStackTrace();
+			throw new IllegalArgumentException(ex);
+		}
+	}
+	
+	
+	/*
+	 * reads another frame of an already opened file
+	 */
+	public DicomReader(FrameReader frameReader, int frameIndex)
+	{
+		this(frameReader, frameIndex, 1);
+	}
+	
+	
+	/*
+	 * reads a frame reduced by up to maxScale, if its decoder can do it 
+	 * for less than the full size (for previews and thumbnails); 
+	 * getScale tells the factor applied
+	 */
+	public DicomReader(FrameReader frameReader, int frameIndex, int maxScale)
+	{
+		this.frameIndex = frameIndex;
+		this.maxScale = maxScale;
+		this.init(frameReader);
+	}
+	
+	
+	/*
+	 * takes the samples of a compressed frame the caller has already 
+	 * decoded at full size, e.g. together with other frames
+	 */
+	public DicomReader(FrameReader frameReader, int frameIndex, short[] decodedFrame)
+	{
+		this.frameIndex = frameIndex;
+		this.decodedFrame = decodedFrame;
+		this.init(frameReader);
+	}
+	
+	
+	private void init(FrameReader frameReader)
+	{
+		try
+		{
+			this.frameReader = frameReader;
+			bdo = frameReader.getHeader();
 			height = bdo.getInt(org.dcm4che2.data.Tag.Rows);
 	    	width = bdo.getInt(org.dcm4che2.data.Tag.Columns);
-	    	boolean invert = bdo.get(0x00280004).toString().toUpperCase().endsWith("[MONOCHROME1]") ? true : false;
+	    	monochrome1 = bdo.get(0x00280004).toString().toUpperCase().endsWith("[MONOCHROME1]") ? true : false;
 	    	
 	    	String completeName = bdo.getString(org.dcm4che2.data.Tag.PatientName);
 	    	StringTokenizer tokenizer = new StringTokenizer(completeName, "^");
@@ -78,12 +160,45 @@ public class DicomReader {
 	    		PatientBirthString = DateFormat.getDateInstance(DateFormat.MEDIUM).format(PatientBirth);
 	    	}
 	    	int bitsAllocated = bdo.getInt(org.dcm4che2.data.Tag.BitsAllocated);
-	    	if(bitsAllocated == 8 || bitsAllocated == 12 || bitsAllocated == 16)
+	    	bitsStored = bdo.getInt(org.dcm4che2.data.Tag.BitsStored, bitsAllocated);
+	    	pixelRepresentation = bdo.getInt(org.dcm4che2.data.Tag.PixelRepresentation);
+	    	rescaleSlope = bdo.getDouble(org.dcm4che2.data.Tag.RescaleSlope, 1.);
+	    	rescaleIntercept = bdo.getDouble(org.dcm4che2.data.Tag.RescaleIntercept, 0.);
+	    	modality = bdo.getString(Tag.Modality, "");
+	    	readLookupTables();
+	    	readPixelPadding();
+	    	int samplesPerPixel = bdo.getInt(Tag.SamplesPerPixel, 1);
+	    	if((bitsAllocated == 8 || bitsAllocated == 12 || bitsAllocated == 16) && !frameReader.isEncapsulated())
+	    	{
+	    		ByteBuffer bytePixels = frameReader.getFrame(frameIndex);
+	    		if(samplesPerPixel == 1)
+	    		{
+	    			pixels = DicomHelper.readPixels(bytePixels, bitsAllocated, width, height);
+	    		}
+	    		else if(samplesPerPixel == 3 && bitsAllocated != 12)
+	    		{
+	    			short[] samples = DicomHelper.readRaster(bytePixels, bitsAllocated, width * 3, height);
+	    			boolean planar = bdo.getInt(Tag.PlanarConfiguration, 0) == 1;
+	    			pixels = toGray(samples, planar ? 1 : 3, planar ? width * height : 1);
+	    		}
+	    	}
+	    	else if(frameReader.isEncapsulated() && (samplesPerPixel == 1 || samplesPerPixel == 3))
 	    	{
-	    		byte bytePixels[] = DicomHelper.readPixelData(bdo);
-	    		pixelData = DicomHelper.convertToIntPixelData(bytePixels, bitsAllocated, width, height, invert);
+	    		// decoders write the samples of a pixel interleaved
+	    		short[] samples = decodedFrame != null 
+	    				? decodedFrame 
+	    				: decodeFrame(frameReader.getTransferSyntaxUID(), frameReader.getFrame(frameIndex), bitsAllocated, samplesPerPixel);
+	    		if(samples != null)
+	    		{
+	    			pixels = samplesPerPixel == 1 ? ShortBuffer.wrap(samples, 0, width * height) : toGray(samples, 3, 1);
+	    		}
 	    	}
 		}
+		catch(CancellationException ex)
+		{
+			// the reading thread was interrupted
+			throw ex;
+		}
 		catch(Exception ex)
 		{
 			ex.printStackTrace();
@@ -92,9 +207,256 @@ public class DicomReader {
 	}
 	
 	
-	public int[] getPixelData()
+	/*
+	 * decodes a compressed frame into a new raster, returns null if there 
+	 * is no decoder for the transfer syntax
+	 */
+	private short[] decodeFrame(String transferSyntaxUID, ByteBuffer frame, int bitsAllocated, int samplesPerPixel) throws IOException
+	{
+		if(frame == null || !PixelDecoderRegistry.canDecode(transferSyntaxUID, bitsAllocated, samplesPerPixel))return null;
+		int limit = Math.min(maxScale, PixelDecoderRegistry.getMaxScale(transferSyntaxUID));
+		while(scale * 2 <= limit)scale *= 2;
+		int columns = (width + scale - 1) / scale;
+		int rows = (height + scale - 1) / scale;
+		short[] raster = PixelDecoderRegistry.decode(transferSyntaxUID, frame, width, height, samplesPerPixel, bitsAllocated, 
+				scale, new short[columns * rows * samplesPerPixel]);
+		width = columns;
+		height = rows;
+		return raster;
+	}
+	
+	
+	/*
+	 * color images are shown in gray: the Y sample of YBR pixels, the 
+	 * luminance of RGB pixels; sample c of pixel i is at 
+	 * i * pixelStride + c * sampleStride
+	 */
+	private ShortBuffer toGray(short[] samples, int pixelStride, int sampleStride)
+	{
+		if(samples == null)return null;
+		final int size = width * height;
+		final boolean ybr = bdo.getString(Tag.PhotometricInterpretation, "").trim().toUpperCase().startsWith("YBR");
+		final int mask = bitsStored > 8 ? 0xffff : 0xff;
+		short[] gray = new short[size];
+		for(int i = 0, j = 0; i < size; i++, j += pixelStride)
+		{
+			if(ybr)
+			{
+				gray[i] = samples[j];
+			}
+			else
+			{
+				int r = samples[j] & mask;
+				int g = samples[j + sampleStride] & mask;
+				int b = samples[j + 2 * sampleStride] & mask;
+				gray[i] = (short) ((299 * r + 587 * g + 114 * b + 500) / 1000);
+			}
+		}
+		return ShortBuffer.wrap(gray);
+	}
+	
+	
+	public int getFrameCount()
+	{
+		return frameReader.getFrameCount();
+	}
+	
+	
+	public FrameReader getFrameReader()
+	{
+		return frameReader;
+	}
+	
+	
+	/*
+	 * frames per second for cine display: from Frame Time, Cine Rate or 
+	 * Recommended Display Frame Rate, 0 if none is given
+	 */
+	public double getFrameRate()
+	{
+		return getFrameRate(bdo);
+	}
+	
+	
+	/*
+	 * as above from a header, without reading any pixel data
+	 */
+	public static double getFrameRate(DicomObject header)
+	{
+		double frameTime = header.getDouble(Tag.FrameTime, 0.);
+		if(frameTime > 0.)return 1000. / frameTime;
+		int cineRate = header.getInt(Tag.CineRate, 0);
+		if(cineRate > 0)return cineRate;
+		return header.getInt(Tag.RecommendedDisplayFrameRate, 0);
+	}
+	
+	
+	public int getFrameIndex()
+	{
+		return frameIndex;
+	}
+	
+	
+	/*
+	 * factor by which the image is smaller than the stored frame
+	 */
+	public int getScale()
+	{
+		return scale;
+	}
+	
+	
+	/*
+	 * reads the Modality LUT, the windows and the VOI LUTs of the header
+	 */
+	private void readLookupTables()
+	{
+		DicomObject modalityLutItem = bdo.getNestedDicomObject(Tag.ModalityLUTSequence);
+		if(modalityLutItem != null)
+		{
+			int[] descriptor = readLutDescriptor(modalityLutItem);
+			modalityLut = readLutData(modalityLutItem, descriptor);
+			if(modalityLut != null)modalityLutFirst = descriptor[1];
+		}
+		
+		double[] centers = bdo.getDoubles(Tag.WindowCenter);
+		double[] widths = bdo.getDoubles(Tag.WindowWidth);
+		String[] explanations = bdo.getStrings(Tag.WindowCenterWidthExplanation);
+		voiLutFunction = bdo.getString(Tag.VOILUTFunction);
+		if(centers != null && widths != null)
+		{
+			for(int i = 0; i < centers.length && i < widths.length; i++)
+			{
+				if(widths[i] < 1.)continue;
+				String name = explanations != null && i < explanations.length && explanations[i].length() > 0 
+						? explanations[i] 
+						: Messages.getLabel(Messages.PRESET_WINDOW, Messages.Language) + " " + (i + 1);
+				headerPresets.add(new WindowPreset(name, centers[i], widths[i]));
+			}
+		}
+		
+		DicomElement voiLutSequence = bdo.get(Tag.VOILUTSequence);
+		for(int i = 0, n = voiLutSequence == null ? 0 : voiLutSequence.countItems(); i < n; i++)
+		{
+			DicomObject item = voiLutSequence.getDicomObject(i);
+			int[] descriptor = readLutDescriptor(item);
+			int[] data = readLutData(item, descriptor);
+			if(data == null)continue;
+			String name = item.getString(Tag.LUTExplanation);
+			if(name == null || name.length() == 0)
+			{
+				name = Messages.getLabel(Messages.PRESET_VOI_LUT, Messages.Language) + " " + (i + 1);
+			}
+			headerPresets.add(new WindowPreset(name, data, descriptor[1], descriptor[2]));
+		}
+	}
+	
+	
+	private void readPixelPadding()
 	{
-		return pixelData;
+		int[] padding = bdo.getInts(Tag.PixelPaddingValue);
+		if(padding == null || padding.length == 0)return;
+		int[] limit = bdo.getInts(Tag.PixelPaddingRangeLimit);
+		pixelPadding = new int[] {padding[0], limit != null && limit.length > 0 ? limit[0] : padding[0]};
+		for(int i = 0; i < 2; i++)
+		{
+			// values encoded as US are signed for signed pixel data
+			if(pixelRepresentation == 1 && pixelPadding[i] > Short.MAX_VALUE)pixelPadding[i] -= 1 << 16;
+		}
+	}
+	
+	
+	/*
+	 * number of entries, first mapped value and bits per entry of a LUT, or 
+	 * null if the descriptor is invalid
+	 */
+	private int[] readLutDescriptor(DicomObject item)
+	{
+		int[] descriptor = item.getInts(Tag.LUTDescriptor);
+		if(descriptor == null || descriptor.length < 3)return null;
+		descriptor = new int[] {descriptor[0], descriptor[1], descriptor[2]};
+		// 0 entries stands for 2^16
+		if(descriptor[0] == 0)descriptor[0] = 1 << 16;
+		// the first mapped value is signed for signed pixel data, even if 
+		// the descriptor is encoded as US
+		if(pixelRepresentation == 1 && descriptor[1] > Short.MAX_VALUE)descriptor[1] -= 1 << 16;
+		return descriptor;
+	}
+	
+	
+	private int[] readLutData(DicomObject item, int[] descriptor)
+	{
+		if(descriptor == null)return null;
+		int[] words = item.getInts(Tag.LUTData);
+		if(words == null || words.length == 0)return null;
+		int entries = descriptor[0];
+		if(descriptor[2] <= 8 && words.length * 2 >= entries && words.length < entries)
+		{
+			// 8 bit entries packed two per word
+			int[] data = new int[entries];
+			for(int i = 0; i < entries; i++)
+			{
+				data[i] = (i & 1) == 0 ? words[i >> 1] & 0xff : (words[i >> 1] >> 8) & 0xff;
+			}
+			return data;
+		}
+		if(words.length > entries)
+		{
+			int[] data = new int[entries];
+			System.arraycopy(words, 0, data, 0, entries);
+			return data;
+		}
+		return words;
+	}
+	
+	
+	/*
+	 * returns the stored pixel values as image, or null if the pixel data 
+	 * cannot be read
+	 */
+	public ImageGray16Bit getImage()
+	{
+		return getImage(true);
+	}
+	
+	
+	/*
+	 * as above; without autoWindow an image without header window keeps 
+	 * the default window and no histogram is computed, for callers that 
+	 * set the window themselves
+	 */
+	public ImageGray16Bit getImage(boolean autoWindow)
+	{
+		if(pixels == null)return null;
+		ImageGray16Bit image = new ImageGray16Bit();
+		image.setPixels(pixels);
+		image.setWidth(width);
+		image.setHeight(height);
+		image.setBitsStored(bitsStored);
+		image.setPixelRepresentation(pixelRepresentation);
+		image.setRescale(rescaleSlope, rescaleIntercept);
+		image.setMonochrome1(monochrome1);
+		if(pixelPadding != null)image.setPixelPadding(pixelPadding[0], pixelPadding[1]);
+		WindowLevelEngine engine = image.getWindowLevelEngine();
+		engine.setModalityLut(modalityLut, modalityLutFirst);
+		engine.setVoiLutFunction(voiLutFunction);
+		// the presets offered: the windows and VOI LUTs of the header, 
+		// followed by the common CT windows
+		List<WindowPreset> presets = new ArrayList<WindowPreset>(headerPresets);
+		if("CT".equalsIgnoreCase(modality.trim()))
+		{
+			WindowPreset[] ctPresets = WindowPreset.getCTPresets(Messages.Language);
+			for(int i = 0; i < ctPresets.length; i++)presets.add(ctPresets[i]);
+		}
+		image.setWindowPresets(presets.toArray(new WindowPreset[presets.size()]));
+		// default view: the first window or VOI LUT of the header, else the 
+		// window derived from the histogram
+		if(!headerPresets.isEmpty())headerPresets.get(0).applyTo(engine);
+		else if(autoWindow)image.setWindowToPercentiles();
+		image.setPatientName(PatientName);
+		image.setPatientPrename(PatientPrename);
+		image.setPatientBirth(PatientBirthString);
+		return image;
 	}
 	
 	public int getWidth()
@@ -0,0 +1,355 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <FrameReader.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.TransferSyntax;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.util.CloseUtils;
+
+/*
+ * Random access to the frames of a single or multi-frame image. The header 
+ * is parsed up to the pixel data, the pixel data itself is only addressed 
+ * in a read-only memory mapping of the file: a native frame is a view of 
+ * rows * columns * samples * bits allocated bytes at its offset, an 
+ * encapsulated frame is located with the Basic Offset Table of the first 
+ * item. Reading frame N touches the bytes of that frame only (and, for 
+ * encapsulated data, the 8 byte item headers of the frames or fragments).
+ */
+public class FrameReader {
+
+	private static final int ITEM = 0xFFFEE000;
+	
+	private final DicomObject header;
+	private final ByteBuffer file;
+	private final boolean bigEndian;
+	private final String transferSyntaxUID;
+	private final int frameCount;
+	private final int frameLength;
+	private final int pixelDataOffset;
+	private final int pixelDataLength;
+	
+	// encapsulated data: offsets of the first fragment item of each frame 
+	// and of the end of the last fragment, computed on first use
+	private int[] frameStarts = null;
+	
+	
+	public FrameReader(String fileName) throws IOException
+	{
+		// the header is parsed from the mapping as well
+		file = map(new File(fileName));
+		DicomInputStream dis = new DicomInputStream(file);
+		header = DicomHelper.readHeader(dis, Tag.PixelData);
+		bigEndian = dis.getTransferSyntax().bigEndian();
+		transferSyntaxUID = dis.getTransferSyntax().uid();
+		if(dis.tag() == Tag.PixelData && dis.level() == 0)
+		{
+			pixelDataOffset = (int) dis.getStreamPosition();
+			pixelDataLength = dis.valueLength();
+		}
+		else
+		{
+			pixelDataOffset = -1;
+			pixelDataLength = 0;
+		}
+		frameCount = getFrameCount(header);
+		frameLength = getFrameLength(header);
+	}
+	
+	
+	/*
+	 * opens an indexed file: the header, the transfer syntax and the position 
+	 * of the pixel data are taken from the index, only the mapping is created
+	 */
+	public FrameReader(DicomIndex.Instance instance) throws IOException
+	{
+		file = map(instance.getFile());
+		header = instance.getHeader();
+		transferSyntaxUID = instance.getTransferSyntaxUID();
+		bigEndian = TransferSyntax.valueOf(transferSyntaxUID).bigEndian();
+		if(instance.getPixelDataOffset() > file.capacity())
+		{
+			throw new IOException("File changed since it was indexed: " + instance.getFile());
+		}
+		pixelDataOffset = (int) instance.getPixelDataOffset();
+		pixelDataLength = pixelDataOffset < 0 ? 0 : instance.getPixelDataLength();
+		frameCount = getFrameCount(header);
+		frameLength = getFrameLength(header);
+	}
+	
+	
+	/*
+	 * read-only mapping of the whole file, which stays valid after the 
+	 * channel is closed
+	 */
+	private static ByteBuffer map(File f) throws IOException
+	{
+		FileInputStream fis = new FileInputStream(f);
+		try
+		{
+			FileChannel channel = fis.getChannel();
+			if(channel.size() > Integer.MAX_VALUE)throw new IOException("File too large to be mapped: " + channel.size());
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			CloseUtils.safeClose(fis);
+		}
+	}
+	
+	
+	private static int getFrameCount(DicomObject header)
+	{
+		return Math.max(1, header.getInt(Tag.NumberOfFrames, 1));
+	}
+	
+	
+	// bytes of a native frame
+	private static int getFrameLength(DicomObject header)
+	{
+		long bits = (long) header.getInt(Tag.Rows) * header.getInt(Tag.Columns) 
+				* header.getInt(Tag.SamplesPerPixel, 1) * header.getInt(Tag.BitsAllocated, 16);
+		return (int) Math.min(Integer.MAX_VALUE, (bits + 7) / 8);
+	}
+	
+	
+	/*
+	 * header up to the pixel data
+	 */
+	public DicomObject getHeader()
+	{
+		return header;
+	}
+	
+	
+	public int getFrameCount()
+	{
+		return frameCount;
+	}
+	
+	
+	public boolean hasPixelData()
+	{
+		return pixelDataOffset >= 0;
+	}
+	
+	
+	/*
+	 * pixel data of undefined length, i.e. compressed fragments
+	 */
+	public boolean isEncapsulated()
+	{
+		return hasPixelData() && pixelDataLength == -1;
+	}
+	
+	
+	/*
+	 * transfer syntax of the data set, which tells how encapsulated pixel 
+	 * data is compressed
+	 */
+	public String getTransferSyntaxUID()
+	{
+		return transferSyntaxUID;
+	}
+	
+	
+	/*
+	 * byte order of native pixel data
+	 */
+	public ByteOrder getByteOrder()
+	{
+		return bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+	}
+	
+	
+	/*
+	 * returns the bytes of the given frame - for native data a read-only 
+	 * view in the byte order of the pixel data, for encapsulated data the 
+	 * compressed bytes (a view if the frame is a single fragment, else a 
+	 * copy of its fragments), or null if there is no such frame
+	 */
+	public ByteBuffer getFrame(int index)
+	{
+		if(!hasPixelData() || index < 0 || index >= frameCount)return null;
+		if(!isEncapsulated())
+		{
+			long start = pixelDataOffset + (long) index * frameLength;
+			long end = Math.min(start + frameLength, Math.min((long) pixelDataOffset + pixelDataLength, file.capacity()));
+			if(start >= end)return null;
+			return slice((int) start, (int) (end - start)).order(getByteOrder());
+		}
+		
+		int[] starts = getFrameStarts();
+		if(index + 1 >= starts.length)return null;
+		int position = starts[index];
+		final int end = starts[index + 1];
+		ArrayList<ByteBuffer> fragments = new ArrayList<ByteBuffer>(1);
+		int length = 0;
+		while(position + 8 <= end && readTag(position) == ITEM)
+		{
+			int fragmentLength = readInt(position + 4);
+			position += 8;
+			if(fragmentLength < 0 || position + fragmentLength > file.capacity())break;
+			fragments.add(slice(position, fragmentLength));
+			length += fragmentLength;
+			position += fragmentLength;
+		}
+		if(fragments.size() == 1)return fragments.get(0);
+		ByteBuffer frame = ByteBuffer.allocate(length);
+		for(int i = 0; i < fragments.size(); i++)frame.put(fragments.get(i));
+		frame.flip();
+		return frame;
+	}
+	
+	
+	/*
+	 * item offsets of the frames of encapsulated pixel data from the Basic 
+	 * Offset Table; if the table is empty or its offsets are not increasing 
+	 * offsets of items within the file, each fragment is a frame, or for 
+	 * a single frame all fragments are, or else a frame starts with each 
+	 * fragment that starts with a JPEG or JPEG 2000 start marker
+	 */
+	private synchronized int[] getFrameStarts()
+	{
+		if(frameStarts != null)return frameStarts;
+		int position = pixelDataOffset;
+		if(position + 8 > file.capacity() || readTag(position) != ITEM)
+		{
+			return frameStarts = new int[0];
+		}
+		final int tableLength = readInt(position + 4);
+		if(tableLength < 0 || tableLength > file.capacity() - position - 8)
+		{
+			return frameStarts = new int[0];
+		}
+		final int firstFragment = position + 8 + tableLength;
+		
+		int[] starts;
+		if(tableLength >= 4 * frameCount)
+		{
+			starts = new int[frameCount + 1];
+			boolean valid = true;
+			for(int i = 0; i < frameCount && valid; i++)
+			{
+				long start = (long) firstFragment + (readInt(pixelDataOffset + 8 + 4 * i) & 0xffffffffL);
+				valid = start <= file.capacity() - 8 && (i == 0 ? start >= firstFragment : start > starts[i - 1]);
+				starts[i] = (int) start;
+				if(valid)valid = readTag(starts[i]) == ITEM;
+			}
+			if(valid)
+			{
+				// only the fragments of the last frame are walked to find the end
+				starts[frameCount] = skipItems(starts[frameCount - 1], null);
+				return frameStarts = starts;
+			}
+		}
+		
+		// the item headers of all fragments and the end of the last one
+		ArrayList<Integer> items = new ArrayList<Integer>();
+		int end = skipItems(firstFragment, items);
+		if(items.size() == frameCount || (frameCount == 1 && !items.isEmpty()))
+		{
+			starts = new int[frameCount + 1];
+			for(int i = 0; i < frameCount; i++)starts[i] = items.get(i).intValue();
+		}
+		else
+		{
+			ArrayList<Integer> frames = new ArrayList<Integer>(frameCount);
+			for(int i = 0; i < items.size() && frames.size() < frameCount; i++)
+			{
+				int item = items.get(i).intValue();
+				if(i == 0 || isStartOfFrame(item + 8))frames.add(Integer.valueOf(item));
+			}
+			starts = new int[frames.size() + 1];
+			for(int i = 0; i < frames.size(); i++)starts[i] = frames.get(i).intValue();
+		}
+		starts[starts.length - 1] = end;
+		return frameStarts = starts;
+	}
+	
+	
+	/*
+	 * returns the offset behind the items starting at position, adding 
+	 * the offsets of the items to the list if it is not null
+	 */
+	private int skipItems(int position, ArrayList<Integer> items)
+	{
+		while(position >= 0 && position + 8 <= file.capacity() && readTag(position) == ITEM)
+		{
+			if(items != null)items.add(Integer.valueOf(position));
+			int fragmentLength = readInt(position + 4);
+			if(fragmentLength < 0)break;
+			position += 8 + fragmentLength;
+		}
+		return Math.min(position, file.capacity());
+	}
+	
+	
+	// SOI of JPEG and JPEG-LS, SOC of JPEG 2000
+	private boolean isStartOfFrame(int position)
+	{
+		if(position + 2 > file.capacity())return false;
+		int marker = (file.get(position) & 0xff) << 8 | (file.get(position + 1) & 0xff);
+		return marker == 0xFFD8 || marker == 0xFF4F;
+	}
+	
+	
+	// group and element of an item tag, both little endian
+	private int readTag(int position)
+	{
+		return (file.get(position) & 0xff) << 16 
+				| (file.get(position + 1) & 0xff) << 24 
+				| (file.get(position + 2) & 0xff) 
+				| (file.get(position + 3) & 0xff) << 8;
+	}
+	
+	
+	// item lengths and offset table entries are little endian
+	private int readInt(int position)
+	{
+		return (file.get(position) & 0xff) 
+				| (file.get(position + 1) & 0xff) << 8 
+				| (file.get(position + 2) & 0xff) << 16 
+				| (file.get(position + 3) & 0xff) << 24;
+	}
+	
+	
+	private ByteBuffer slice(int position, int length)
+	{
+		ByteBuffer view = file.duplicate();
+		view.position(position);
+		view.limit(position + length);
+		return view.slice();
+	}
+}
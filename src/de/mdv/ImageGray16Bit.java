@@ -24,8 +24,27 @@
  */
 package de.mdv;
 
+import java.nio.ShortBuffer;
+import java.util.concurrent.CancellationException;
+
+import android.graphics.Bitmap;
+
+/*
+ * Grayscale image holding the stored pixel values of a DICOM image in a 
+ * short buffer (2 bytes per pixel). The buffer may be a view of the memory 
+ * mapped file, so large images need no copy in the java heap. The stored 
+ * values are interpreted and mapped to ARGB gray levels by the 
+ * WindowLevelEngine of the image only when a region of the image is 
+ * rendered into a bitmap.
+ */
 public class ImageGray16Bit {
 
+	// number of ARGB pixels rendered in one step into the bitmap
+	private static final int RENDER_BUFFER_SIZE = 64 * 1024;
+	
+	// minimum number of pixels processed by one thread
+	private static final int PIXELS_PER_BAND = 16 * 1024;
+	
 	private int width = 0;
 	
 	/**
@@ -35,43 +54,363 @@ public class ImageGray16Bit {
 	private int height = 0;
 	
 	/**
-	 * Image data.
+	 * Stored pixel values, row by row. Interpreted as signed or unsigned
+	 * according to the pixel representation.
 	 */
-	private int[] imageData = null;
-	private int[] originalImageData = null;
+	private ShortBuffer pixels = null;
+	
+	private final WindowLevelEngine engine = new WindowLevelEngine();
+	
+	private WindowPreset[] windowPresets = new WindowPreset[0];
+	
+	private static final int HISTOGRAM_SIZE = 1 << 16;
+	
+	// fewer threads for the histogram, as each band needs its own
+	private static final int HISTOGRAM_PIXELS_PER_BAND = 256 * 1024;
+	
+	private static double autoWindowLower = 0.5;
+	private static double autoWindowUpper = 99.5;
+	
+	private int[] histogram = null;
+	
+	private boolean hasPixelPadding = false;
+	private int paddingMin, paddingMax;
+	
+	// band buffer of createBitmap, one per rendering thread
+	private static final ThreadLocal<int[]> renderBuffer = new ThreadLocal<int[]>() 
+	{
+		protected int[] initialValue()
+		{
+			return new int[RENDER_BUFFER_SIZE];
+		}
+	};
 	
 	private String patientName;
 	private String patientPrename;
 	private String patientBirth;
 	
 	
-	public void setImageData(int[] imageData)
+	public void setRaster(short[] raster)
+	{
+		setPixels(raster == null ? null : ShortBuffer.wrap(raster));
+	}
+	
+	public synchronized void setPixels(ShortBuffer pixels)
+	{
+		this.pixels = pixels;
+		this.histogram = null;
+	}
+	
+	public ShortBuffer getPixels()
+	{
+		return pixels;
+	}
+	
+	public boolean hasPixels()
+	{
+		return pixels != null && pixels.limit() >= width * height && width > 0 && height > 0;
+	}
+	
+	public WindowLevelEngine getWindowLevelEngine()
+	{
+		return engine;
+	}
+	
+	/*
+	 * windows and VOI LUTs offered to the user for this image
+	 */
+	public void setWindowPresets(WindowPreset[] windowPresets)
+	{
+		this.windowPresets = windowPresets == null ? new WindowPreset[0] : windowPresets;
+	}
+	
+	public WindowPreset[] getWindowPresets()
+	{
+		return windowPresets;
+	}
+	
+	/*
+	 * stored value of the pixel with the given index, sign extended or 
+	 * masked according to bits stored and pixel representation
+	 */
+	public int getStoredValue(int index)
+	{
+		return engine.toStoredValue(pixels.get(index));
+	}
+	
+	/*
+	 * modality value (e.g. Hounsfield units) of the pixel with the given index
+	 */
+	public double getModalityValue(int index)
+	{
+		return engine.toModalityValue(getStoredValue(index));
+	}
+	
+	/*
+	 * histogram of the stored values, indexed by the stored value & 0xffff; 
+	 * computed in one parallel pass over the pixels on first use and kept, 
+	 * so later automatic windowing needs no pass over the pixels
+	 */
+	public synchronized int[] getHistogram()
+	{
+		if(histogram != null || !hasPixels())return histogram;
+		final int size = width * height;
+		final int[][] bandHistograms = new int[ParallelBands.getBandCount(size, HISTOGRAM_PIXELS_PER_BAND)][];
+		final ShortBuffer pixels = this.pixels;
+		final int shift = 32 - engine.getBitsStored();
+		final boolean signed = engine.getPixelRepresentation() != 0;
+		// histogram of each band, summed up below
+		ParallelBands.execute(size, HISTOGRAM_PIXELS_PER_BAND, new ParallelBands.Task() 
+		{
+			public void run(int first, int end, int band)
+			{
+				int[] counts = new int[HISTOGRAM_SIZE];
+				if(signed)
+				{
+					for(int i = first; i < end; i++)
+					{
+						counts[((pixels.get(i) << shift) >> shift) & 0xffff]++;
+					}
+				}
+				else
+				{
+					for(int i = first; i < end; i++)
+					{
+						counts[((pixels.get(i) << shift) >>> shift) & 0xffff]++;
+					}
+				}
+				bandHistograms[band] = counts;
+			}
+		});
+		int[] counts = bandHistograms[0];
+		for(int band = 1; band < bandHistograms.length; band++)
+		{
+			int[] bandCounts = bandHistograms[band];
+			for(int i = 0; i < HISTOGRAM_SIZE; i++)counts[i] += bandCounts[i];
+		}
+		histogram = counts;
+		return histogram;
+	}
+	
+	/*
+	 * stored values from padding to paddingRangeLimit (both inclusive, in 
+	 * any order) are Pixel Padding and are ignored by the automatic windowing
+	 */
+	public void setPixelPadding(int padding, int paddingRangeLimit)
+	{
+		this.hasPixelPadding = true;
+		this.paddingMin = Math.min(padding, paddingRangeLimit);
+		this.paddingMax = Math.max(padding, paddingRangeLimit);
+	}
+	
+	/*
+	 * the percentiles used by setWindowToPercentiles() for all images
+	 */
+	public static void setAutoWindowPercentiles(double lower, double upper)
+	{
+		autoWindowLower = lower;
+		autoWindowUpper = upper;
+	}
+	
+	/*
+	 * sets the window to the range of the modality values
+	 */
+	public void setWindowToMinMax()
+	{
+		setWindowToPercentiles(0., 100.);
+	}
+	
+	/*
+	 * sets the window to the range between the configured percentiles of 
+	 * the stored values
+	 */
+	public void setWindowToPercentiles()
+	{
+		setWindowToPercentiles(autoWindowLower, autoWindowUpper);
+	}
+	
+	/*
+	 * sets the window to the range between the lower and upper percentile 
+	 * (0 to 100) of the stored values, so a few hot pixels do not spoil the 
+	 * window; Pixel Padding is not counted
+	 */
+	public void setWindowToPercentiles(double lowerPercentile, double upperPercentile)
+	{
+		final int[] counts = getHistogram();
+		if(counts == null)return;
+		final int bitsStored = engine.getBitsStored();
+		final int minStored = engine.getPixelRepresentation() != 0 ? -(1 << (bitsStored - 1)) : 0;
+		final int maxStored = engine.getPixelRepresentation() != 0 ? (1 << (bitsStored - 1)) - 1 : (1 << bitsStored) - 1;
+		long total = 0;
+		for(int value = minStored; value <= maxStored; value++)
+		{
+			if(!isPadding(value))total += counts[value & 0xffff];
+		}
+		if(total == 0)return;
+		// smallest values with more than lower resp. at least upper percent 
+		// of the pixels below or at them
+		final double lowerCount = total * Math.max(0., lowerPercentile) / 100.;
+		final double upperCount = total * Math.min(100., upperPercentile) / 100.;
+		int min = maxStored, max = minStored;
+		long sum = 0;
+		boolean lowerFound = false;
+		for(int value = minStored; value <= maxStored; value++)
+		{
+			int count = isPadding(value) ? 0 : counts[value & 0xffff];
+			if(count == 0)continue;
+			sum += count;
+			if(!lowerFound && sum > lowerCount)
+			{
+				min = value;
+				lowerFound = true;
+			}
+			max = value;
+			if(sum >= upperCount)break;
+		}
+		// a negative slope swaps the ends of the range
+		double first = engine.toModalityValue(min);
+		double last = engine.toModalityValue(max);
+		double lower = Math.min(first, last);
+		double upper = Math.max(first, last);
+		engine.setWindow((lower + upper + 1.) / 2., upper - lower + 1.);
+	}
+	
+	private boolean isPadding(int storedValue)
+	{
+		return hasPixelPadding && storedValue >= paddingMin && storedValue <= paddingMax;
+	}
+	
+	/*
+	 * window center and width in modality units
+	 */
+	public void setWindow(double windowCenter, double windowWidth)
+	{
+		engine.setWindow(windowCenter, windowWidth);
+	}
+	
+	public double getWindowCenter()
+	{
+		return engine.getWindowCenter();
+	}
+	
+	public double getWindowWidth()
+	{
+		return engine.getWindowWidth();
+	}
+	
+	public void setBrightnessAndContrast(int brightness, int contrast)
+	{
+		engine.setBrightnessAndContrast(brightness, contrast);
+	}
+	
+	
+	/*
+	 * renders the gray levels of the given rows as ARGB pixels into out
+	 */
+	public void render(int firstRow, int rowCount, int[] out)
 	{
-		this.imageData = imageData;
+		render(0, firstRow, width, rowCount, 1, out);
 	}
 	
-	public int[] getImageData()
+	
+	/*
+	 * renders a region of columns x rows output pixels as ARGB pixels into 
+	 * out; output pixel (x, y) shows the stored pixel 
+	 * (left + x * subsample, top + y * subsample), so a power of two 
+	 * subsample gives a reduced resolution view of a large image
+	 */
+	public void render(final int left, final int top, final int columns, int rows, final int subsample, final int[] out)
 	{
-		return imageData;
+		// the rows are rendered in parallel bands
+		ParallelBands.execute(rows, Math.max(1, PIXELS_PER_BAND / Math.max(1, columns)), new ParallelBands.Task() 
+		{
+			public void run(int first, int end, int band)
+			{
+				engine.apply(pixels, width, left, top + first * subsample, columns, end - first, subsample, out, first * columns);
+			}
+		});
 	}
 	
-	// make a safe copy of the image data 
-	public void setOriginalImageData(int[] imageData)
+	
+	/*
+	 * renders the image into a new bitmap in bands of rows, so no ARGB copy 
+	 * of the whole image is needed in the java heap
+	 */
+	public Bitmap createBitmap()
 	{
-		if(imageData == null)
-			this.originalImageData = imageData;
-		this.originalImageData = new int[imageData.length];
-		System.arraycopy(imageData, 0, this.originalImageData, 0, imageData.length);
+		return createBitmap(1, Bitmap.Config.ARGB_8888);
 	}
 	
-	// return only a copy of the original image data - leave the original image data unchanged
-	public int[] getOriginalImageData()
+	
+	/*
+	 * renders every subsample-th pixel of every subsample-th row into a 
+	 * bitmap of (width / subsample) x (height / subsample) pixels, rounded up, 
+	 * taken from the shared BitmapPool; the gray levels are stored with the 
+	 * given configuration, RGB_565 halves the memory of ARGB_8888; 
+	 * returns null if the rendering thread is interrupted
+	 */
+	public Bitmap createBitmap(int subsample, Bitmap.Config config)
+	{
+		if(!hasPixels())return null;
+		if(subsample < 1)subsample = 1;
+		final int columns = (width + subsample - 1) / subsample;
+		final int rows = (height + subsample - 1) / subsample;
+		final BitmapPool pool = BitmapPool.getSharedPool();
+		Bitmap bitmap = pool.acquire(columns, rows, config);
+		int rowsPerBand = Math.max(1, Math.min(rows, RENDER_BUFFER_SIZE / columns));
+		int[] buffer = renderBuffer.get();
+		if(buffer.length < rowsPerBand * columns)
+		{
+			// a single row wider than the buffer
+			buffer = new int[rowsPerBand * columns];
+			renderBuffer.set(buffer);
+		}
+		final Thread thread = Thread.currentThread();
+		for(int y = 0; y < rows; y += rowsPerBand)
+		{
+			if(thread.isInterrupted())
+			{
+				pool.release(bitmap);
+				return null;
+			}
+			int bandRows = Math.min(rowsPerBand, rows - y);
+			try
+			{
+				render(0, y * subsample, columns, bandRows, subsample, buffer);
+			}
+			catch(CancellationException ex)
+			{
+				pool.release(bitmap);
+				return null;
+			}
+			bitmap.setPixels(buffer, 0, columns, 0, y, columns, bandRows);
+		}
+		return bitmap;
+	}
+	
+	
+	/*
+	 * smallest power of two subsample for which a rendering of the image 
+	 * does not exceed the given number of pixels
+	 */
+	public int getSubsampleFor(long maxPixels)
+	{
+		return getSubsampleFor(width, height, maxPixels);
+	}
+	
+	
+	/*
+	 * as above for an image of the given size
+	 */
+	public static int getSubsampleFor(int width, int height, long maxPixels)
 	{
-		if(this.originalImageData == null)
-			return originalImageData;
-		int result[] = new int[this.originalImageData.length];
-		System.arraycopy(originalImageData, 0, result, 0, this.originalImageData.length);
-		return result;
+		int subsample = 1;
+		while(subsample < 1 << 16 && 
+				(long) ((width + subsample - 1) / subsample) * ((height + subsample - 1) / subsample) > maxPixels)
+		{
+			subsample <<= 1;
+		}
+		return subsample;
 	}
 	
 	
@@ -95,6 +434,63 @@ public class ImageGray16Bit {
 		return height;
 	}
 	
+	public synchronized void setBitsStored(int bitsStored)
+	{
+		engine.setBitsStored(bitsStored);
+		histogram = null;
+	}
+	
+	public int getBitsStored()
+	{
+		return engine.getBitsStored();
+	}
+	
+	public synchronized void setPixelRepresentation(int pixelRepresentation)
+	{
+		engine.setPixelRepresentation(pixelRepresentation);
+		histogram = null;
+	}
+	
+	public int getPixelRepresentation()
+	{
+		return engine.getPixelRepresentation();
+	}
+	
+	public void setRescale(double slope, double intercept)
+	{
+		engine.setRescale(slope, intercept);
+	}
+	
+	public double getRescaleSlope()
+	{
+		return engine.getRescaleSlope();
+	}
+	
+	public double getRescaleIntercept()
+	{
+		return engine.getRescaleIntercept();
+	}
+	
+	public void setMonochrome1(boolean monochrome1)
+	{
+		engine.setMonochrome1(monochrome1);
+	}
+	
+	public boolean isMonochrome1()
+	{
+		return engine.isMonochrome1();
+	}
+	
+	public void setInverted(boolean inverted)
+	{
+		engine.setInverted(inverted);
+	}
+	
+	public boolean isInverted()
+	{
+		return engine.isInverted();
+	}
+	
 	public void setPatientName(String value)
 	{
 		this.patientName = value;
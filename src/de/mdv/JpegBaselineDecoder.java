@@ -0,0 +1,492 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <JpegBaselineDecoder.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.dcm4che2.data.UID;
+
+/*
+ * Decoder for DCT based sequential JPEG with Huffman coding (ITU T.81 
+ * baseline process 1 and extended process 4, transfer syntaxes 
+ * 1.2.840.10008.1.2.4.50 and .51) with 8 or 12 bit precision, up to four 
+ * components with any sampling factors and restart intervals. 
+ * A frame can be decoded reduced by 2, 4 or 8: of each 8x8 block only the 
+ * lowest 4x4, 2x2 or 1x1 frequencies go into a 4, 2 or 1 point inverse 
+ * DCT, which gives the block at the reduced size directly. Blocks without 
+ * AC coefficients are filled with their mean. 
+ * Components are written into the raster interleaved and upsampled by 
+ * repetition, without color conversion, as YBR photometric 
+ * interpretations describe the decoded samples. An instance keeps its 
+ * tables and component buffers between frames; it is not thread-safe.
+ */
+public class JpegBaselineDecoder implements ScaledPixelDecoder {
+
+	// natural order index of the coefficients in zig-zag order
+	private static final int[] ZIGZAG = {
+		0,  1,  8, 16,  9,  2,  3, 10,
+		17, 24, 32, 25, 18, 11,  4,  5,
+		12, 19, 26, 33, 40, 48, 41, 34,
+		27, 20, 13,  6,  7, 14, 21, 28,
+		35, 42, 49, 56, 57, 50, 43, 36,
+		29, 22, 15, 23, 30, 37, 44, 51,
+		58, 59, 52, 45, 38, 31, 39, 46,
+		53, 60, 61, 54, 47, 55, 62, 63,
+		// coefficients behind the end of a damaged block are dropped
+		64, 64, 64, 64, 64, 64, 64, 64,
+		64, 64, 64, 64, 64, 64, 64, 64
+	};
+	
+	// inverse DCT matrices for 8, 4, 2 and 1 points: c(u) * cos((2x + 1) u pi / 2n) 
+	// at x * n + u; with c(0) = 1 / sqrt(8) and c(u) = 1 / 2 the n lowest 
+	// coefficients of an 8 point DCT give the means of 8 / n samples
+	private static final float[][] IDCT = new float[9][];
+	
+	static
+	{
+		for(int n = 1; n <= 8; n <<= 1)
+		{
+			IDCT[n] = new float[n * n];
+			for(int x = 0; x < n; x++)
+			{
+				for(int u = 0; u < n; u++)
+				{
+					double c = u == 0 ? 1. / Math.sqrt(8.) : 0.5;
+					IDCT[n][x * n + u] = (float) (c * Math.cos((2 * x + 1) * u * Math.PI / (2 * n)));
+				}
+			}
+		}
+	}
+	
+	private final JpegHuffmanReader reader = new JpegHuffmanReader();
+	
+	// quantization tables in natural order
+	private final int[][] quantization = new int[4][64];
+	
+	// frame
+	private int width, height, precision, components;
+	private final int[] componentIds = new int[4];
+	private final int[] horizontal = new int[4];
+	private final int[] vertical = new int[4];
+	private final int[] quantizationTable = new int[4];
+	private int maxHorizontal, maxVertical, mcusX, mcusY;
+	private int restartInterval;
+	
+	// decoded components at the reduced size, padded to whole MCUs
+	private final short[][] planes = new short[4][];
+	private final int[] planeWidth = new int[4];
+	private int scale, blockSize;
+	
+	// scan
+	private int scanComponents;
+	private final int[] scanComponentIndex = new int[4];
+	private final int[] dcTable = new int[4];
+	private final int[] acTable = new int[4];
+	private final int[] dcPrediction = new int[4];
+	
+	// coefficients of one block with room for dropped ones, inverse DCT rows
+	private final int[] coefficients = new int[65];
+	private final float[] rows = new float[64];
+	
+	
+	public String[] getTransferSyntaxUIDs()
+	{
+		return new String[] {UID.JPEGBaseline1, UID.JPEGExtended24};
+	}
+	
+	
+	public boolean canDecode(int bitsAllocated, int samplesPerPixel)
+	{
+		return (bitsAllocated == 8 || bitsAllocated == 16) && samplesPerPixel >= 1 && samplesPerPixel <= 4;
+	}
+	
+	
+	public int getMaxScale()
+	{
+		return 8;
+	}
+	
+	
+	public short[] decode(ByteBuffer frame, int columns, int rows, int samplesPerPixel, int bitsAllocated, short[] raster) throws IOException
+	{
+		return decode(frame, columns, rows, samplesPerPixel, bitsAllocated, 1, raster);
+	}
+	
+	
+	public short[] decode(ByteBuffer frame, int columns, int rows, int samplesPerPixel, int bitsAllocated, int scale, short[] raster) throws IOException
+	{
+		raster = decode(frame, scale, raster);
+		if(width != columns || height != rows || components != samplesPerPixel)
+		{
+			throw new IOException("JPEG frame of " + width + "x" + height + "x" + components 
+					+ " differs from the image of " + columns + "x" + rows + "x" + samplesPerPixel);
+		}
+		return raster;
+	}
+	
+	
+	/*
+	 * decodes a JPEG stream starting at the position of data reduced by 
+	 * scale (1, 2, 4 or 8) into raster, which is allocated if it is null or 
+	 * too small; returns the raster
+	 */
+	public short[] decode(ByteBuffer data, int scale, short[] raster) throws IOException
+	{
+		if(scale != 1 && scale != 2 && scale != 4 && scale != 8)throw new IllegalArgumentException("Invalid JPEG scale " + scale);
+		this.scale = scale;
+		blockSize = 8 / scale;
+		width = height = components = restartInterval = 0;
+		reader.start(data);
+		try
+		{
+			if(reader.readMarker() != JpegHuffmanReader.SOI)throw new IOException("JPEG stream does not start with SOI");
+			for(int marker = reader.readMarker(); marker != JpegHuffmanReader.EOI; marker = reader.readMarker())
+			{
+				switch(marker)
+				{
+				case JpegHuffmanReader.SOF0:
+				case JpegHuffmanReader.SOF1:
+					readFrameHeader();
+					break;
+				case JpegHuffmanReader.DHT:
+					reader.readHuffmanTables();
+					break;
+				case JpegHuffmanReader.DQT:
+					readQuantizationTables();
+					break;
+				case JpegHuffmanReader.DRI:
+					reader.readUnsignedShort();
+					restartInterval = reader.readUnsignedShort();
+					break;
+				case JpegHuffmanReader.SOS:
+					if(components == 0)throw new IOException("JPEG scan before frame header");
+					readScanHeader();
+					decodeScan();
+					break;
+				default:
+					if(marker >= 0xC0 && marker <= 0xCF && marker != 0xC8 && marker != 0xCC)
+					{
+						throw new IOException("Unsupported JPEG process, SOF marker 0x" + Integer.toHexString(marker));
+					}
+					// APPn, COM, DNL, ...: skipped
+					reader.skipSegment();
+				}
+			}
+		}
+		catch(java.nio.BufferUnderflowException ex)
+		{
+			// a truncated stream ends the image, what was decoded is kept
+			if(components == 0)throw new IOException("Truncated JPEG stream");
+		}
+		finally
+		{
+			reader.finish();
+		}
+		return writeRaster(raster);
+	}
+	
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	
+	public int getPrecision()
+	{
+		return precision;
+	}
+	
+	
+	public int getComponents()
+	{
+		return components;
+	}
+	
+	
+	private void readQuantizationTables() throws IOException
+	{
+		int length = reader.readUnsignedShort() - 2;
+		while(length > 0)
+		{
+			int precisionAndId = reader.readByte();
+			int id = precisionAndId & 0x0f;
+			if(id > 3)throw new IOException("Invalid JPEG quantization table " + id);
+			boolean sixteenBit = precisionAndId >> 4 != 0;
+			for(int k = 0; k < 64; k++)
+			{
+				quantization[id][ZIGZAG[k]] = sixteenBit ? reader.readUnsignedShort() : reader.readByte();
+			}
+			length -= sixteenBit ? 129 : 65;
+		}
+	}
+	
+	
+	private void readFrameHeader() throws IOException
+	{
+		reader.readUnsignedShort();
+		precision = reader.readByte();
+		height = reader.readUnsignedShort();
+		width = reader.readUnsignedShort();
+		components = reader.readByte();
+		if(precision != 8 && precision != 12)throw new IOException("Unsupported JPEG precision " + precision);
+		if(height == 0)throw new IOException("JPEG with DNL height is not supported");
+		if(components < 1 || components > 4)throw new IOException("Unsupported JPEG component count " + components);
+		maxHorizontal = maxVertical = 1;
+		for(int i = 0; i < components; i++)
+		{
+			componentIds[i] = reader.readByte();
+			int sampling = reader.readByte();
+			horizontal[i] = Math.max(1, sampling >> 4);
+			vertical[i] = Math.max(1, sampling & 0x0f);
+			quantizationTable[i] = reader.readByte() & 3;
+			maxHorizontal = Math.max(maxHorizontal, horizontal[i]);
+			maxVertical = Math.max(maxVertical, vertical[i]);
+		}
+		mcusX = (width + 8 * maxHorizontal - 1) / (8 * maxHorizontal);
+		mcusY = (height + 8 * maxVertical - 1) / (8 * maxVertical);
+		for(int i = 0; i < components; i++)
+		{
+			planeWidth[i] = mcusX * horizontal[i] * blockSize;
+			int size = planeWidth[i] * mcusY * vertical[i] * blockSize;
+			if(planes[i] == null || planes[i].length < size)planes[i] = new short[size];
+		}
+	}
+	
+	
+	private void readScanHeader() throws IOException
+	{
+		reader.readUnsignedShort();
+		scanComponents = reader.readByte();
+		if(scanComponents < 1 || scanComponents > components)throw new IOException("Invalid JPEG scan component count");
+		for(int i = 0; i < scanComponents; i++)
+		{
+			int id = reader.readByte();
+			int index = 0;
+			while(index < components && componentIds[index] != id)index++;
+			if(index == components)throw new IOException("Unknown JPEG scan component " + id);
+			scanComponentIndex[i] = index;
+			int tables = reader.readByte();
+			dcTable[i] = JpegHuffmanReader.DC + (tables >> 4 & 3);
+			acTable[i] = JpegHuffmanReader.AC + (tables & 3);
+			if(!reader.isDefined(dcTable[i]) || !reader.isDefined(acTable[i]))throw new IOException("Undefined Huffman table");
+		}
+		// spectral selection and successive approximation of sequential scans
+		reader.readByte();
+		reader.readByte();
+		reader.readByte();
+	}
+	
+	
+	private void decodeScan() throws IOException
+	{
+		for(int i = 0; i < scanComponents; i++)dcPrediction[i] = 0;
+		int mcusLeft = restartInterval;
+		if(scanComponents == 1)
+		{
+			// a single component is coded block by block in its own size
+			final int c = scanComponentIndex[0];
+			final int blocksX = ((width * horizontal[c] + maxHorizontal - 1) / maxHorizontal + 7) / 8;
+			final int blocksY = ((height * vertical[c] + maxVertical - 1) / maxVertical + 7) / 8;
+			for(int blockY = 0; blockY < blocksY; blockY++)
+			{
+				for(int blockX = 0; blockX < blocksX; blockX++)
+				{
+					if(restartInterval > 0)
+					{
+						if(mcusLeft == 0)
+						{
+							reader.readRestartMarker();
+							mcusLeft = restartInterval;
+							dcPrediction[0] = 0;
+						}
+						mcusLeft--;
+					}
+					decodeBlock(0, blockX, blockY);
+				}
+			}
+		}
+		else
+		{
+			for(int mcuY = 0; mcuY < mcusY; mcuY++)
+			{
+				for(int mcuX = 0; mcuX < mcusX; mcuX++)
+				{
+					if(restartInterval > 0)
+					{
+						if(mcusLeft == 0)
+						{
+							reader.readRestartMarker();
+							mcusLeft = restartInterval;
+							for(int i = 0; i < scanComponents; i++)dcPrediction[i] = 0;
+						}
+						mcusLeft--;
+					}
+					for(int i = 0; i < scanComponents; i++)
+					{
+						final int c = scanComponentIndex[i];
+						for(int y = 0; y < vertical[c]; y++)
+						{
+							for(int x = 0; x < horizontal[c]; x++)
+							{
+								decodeBlock(i, mcuX * horizontal[c] + x, mcuY * vertical[c] + y);
+							}
+						}
+					}
+				}
+			}
+		}
+		// the position is left at the marker behind the entropy coded data
+		reader.skipToMarker();
+	}
+	
+	
+	/*
+	 * decodes the block of scan component i at the given block position and 
+	 * writes it at the reduced size into the component plane
+	 */
+	private void decodeBlock(int i, int blockX, int blockY) throws IOException
+	{
+		final JpegHuffmanReader reader = this.reader;
+		final int[] coefficients = this.coefficients;
+		final int c = scanComponentIndex[i];
+		final int[] q = quantization[quantizationTable[c]];
+		final int n = blockSize;
+		
+		int category = reader.decode(dcTable[i]);
+		if(category != 0)dcPrediction[i] += reader.receiveExtend(category);
+		coefficients[0] = dcPrediction[i] * q[0];
+		boolean acCoded = false;
+		final int acs = acTable[i];
+		for(int k = 1; k < 64; k++)
+		{
+			int runAndSize = reader.decode(acs);
+			int size = runAndSize & 0x0f;
+			k += runAndSize >> 4;
+			if(size == 0)
+			{
+				// end of block, or a run of 16 zeros
+				if(runAndSize != 0xF0)break;
+				continue;
+			}
+			final int z = ZIGZAG[k];
+			// frequencies above the reduced size are decoded, but not used
+			if((z & 7) < n && (z >> 3) < n)
+			{
+				coefficients[z] = reader.receiveExtend(size) * q[z];
+				acCoded = true;
+			}
+			else
+			{
+				reader.skipBits(size);
+			}
+		}
+		
+		final short[] plane = planes[c];
+		final int stride = planeWidth[c];
+		final int offset = blockY * n * stride + blockX * n;
+		final int levelShift = 1 << (precision - 1);
+		final int max = (1 << precision) - 1;
+		if(!acCoded)
+		{
+			// the mean of the block
+			final short value = clamp(coefficients[0] / 8f + levelShift, max);
+			for(int y = 0, o = offset; y < n; y++, o += stride)
+			{
+				for(int x = 0; x < n; x++)plane[o + x] = value;
+			}
+			return;
+		}
+		
+		final float[] m = IDCT[n];
+		final float[] rows = this.rows;
+		for(int v = 0; v < n; v++)
+		{
+			final int row = v * 8;
+			for(int x = 0; x < n; x++)
+			{
+				float sum = 0f;
+				for(int u = 0; u < n; u++)sum += m[x * n + u] * coefficients[row + u];
+				rows[v * n + x] = sum;
+			}
+		}
+		for(int y = 0, o = offset; y < n; y++, o += stride)
+		{
+			for(int x = 0; x < n; x++)
+			{
+				float sum = levelShift;
+				for(int v = 0; v < n; v++)sum += m[y * n + v] * rows[v * n + x];
+				plane[o + x] = clamp(sum, max);
+			}
+		}
+		for(int v = 0; v < n; v++)
+		{
+			for(int u = 0; u < n; u++)coefficients[v * 8 + u] = 0;
+		}
+	}
+	
+	
+	private static short clamp(float value, int max)
+	{
+		int rounded = (int) (value + 0.5f);
+		return (short) (value < 0f ? 0 : rounded > max ? max : rounded);
+	}
+	
+	
+	/*
+	 * copies the components at the reduced size into the raster
+	 */
+	private short[] writeRaster(short[] raster)
+	{
+		final int columns = (width + scale - 1) / scale;
+		final int rows = (height + scale - 1) / scale;
+		if(raster == null || raster.length < columns * rows * components)raster = new short[columns * rows * components];
+		for(int c = 0; c < components; c++)
+		{
+			final short[] plane = planes[c];
+			final int stride = planeWidth[c];
+			final int factorX = maxHorizontal / horizontal[c];
+			final int factorY = maxVertical / vertical[c];
+			if(components == 1)
+			{
+				for(int y = 0; y < rows; y++)System.arraycopy(plane, y * stride, raster, y * columns, columns);
+				continue;
+			}
+			for(int y = 0, o = c; y < rows; y++)
+			{
+				final int row = y / factorY * stride;
+				for(int x = 0; x < columns; x++, o += components)raster[o] = plane[row + x / factorX];
+			}
+		}
+		return raster;
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <JpegHuffmanReader.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Marker segments, Huffman tables and entropy coded data of a JPEG stream 
+ * (ITU T.81 annex B, C and F.2.2), shared by the lossless and the DCT 
+ * decoder. Huffman codes of up to LOOKUP_BITS bits are decoded with one 
+ * table lookup, longer ones by comparing with the largest code of each 
+ * length. Tables and buffers are kept between streams; an instance is not 
+ * thread-safe.
+ */
+class JpegHuffmanReader {
+
+	static final int SOF0 = 0xC0;
+	static final int SOF1 = 0xC1;
+	static final int SOF2 = 0xC2;
+	static final int SOF3 = 0xC3;
+	static final int DHT = 0xC4;
+	static final int SOI = 0xD8;
+	static final int EOI = 0xD9;
+	static final int SOS = 0xDA;
+	static final int DQT = 0xDB;
+	static final int DRI = 0xDD;
+	static final int RST0 = 0xD0;
+	static final int RST7 = 0xD7;
+	
+	// table index of the DC and AC tables with id 0..3
+	static final int DC = 0;
+	static final int AC = 4;
+	
+	private static final int LOOKUP_BITS = 9;
+	
+	// code length << 8 | value for the codes of up to LOOKUP_BITS bits, 0 
+	// for longer codes
+	private final short[][] lookup = new short[8][1 << LOOKUP_BITS];
+	// largest code of each length, -1 if there is none
+	private final int[][] maxCode = new int[8][17];
+	// index of the value of a code of each length is code + valueOffset
+	private final int[][] valueOffset = new int[8][17];
+	private final byte[][] values = new byte[8][256];
+	private final boolean[] tableDefined = new boolean[8];
+	private final int[] codeCounts = new int[17];
+	
+	private ByteBuffer in;
+	private int bitBuffer, bitCount;
+	private boolean markerReached;
+	
+	
+	/*
+	 * starts reading the stream at the position of data, all tables are 
+	 * undefined
+	 */
+	void start(ByteBuffer data)
+	{
+		in = data.duplicate();
+		for(int i = 0; i < tableDefined.length; i++)tableDefined[i] = false;
+		bitBuffer = bitCount = 0;
+		markerReached = false;
+	}
+	
+	
+	void finish()
+	{
+		in = null;
+	}
+	
+	
+	int readMarker() throws IOException
+	{
+		int b = in.get() & 0xff;
+		if(b != 0xFF)throw new IOException("JPEG marker expected at " + (in.position() - 1));
+		// fill bytes
+		while(b == 0xFF)b = in.get() & 0xff;
+		return b;
+	}
+	
+	
+	int readByte()
+	{
+		return in.get() & 0xff;
+	}
+	
+	
+	int readUnsignedShort()
+	{
+		return (in.get() & 0xff) << 8 | (in.get() & 0xff);
+	}
+	
+	
+	void skipSegment()
+	{
+		int length = readUnsignedShort();
+		in.position(in.position() + length - 2);
+	}
+	
+	
+	/*
+	 * reads a DHT segment
+	 */
+	void readHuffmanTables() throws IOException
+	{
+		int end = in.position() + readUnsignedShort();
+		while(in.position() < end)
+		{
+			int tableClassAndId = in.get() & 0xff;
+			int tableClass = tableClassAndId >> 4;
+			int id = tableClassAndId & 0x0f;
+			if(id > 3 || tableClass > 1)throw new IOException("Invalid Huffman table " + Integer.toHexString(tableClassAndId));
+			int table = tableClass == 0 ? DC + id : AC + id;
+			int total = 0;
+			for(int length = 1; length <= 16; length++)
+			{
+				codeCounts[length] = in.get() & 0xff;
+				total += codeCounts[length];
+			}
+			if(total > 256)throw new IOException("Invalid Huffman table");
+			in.get(values[table], 0, total);
+			buildTable(table);
+		}
+	}
+	
+	
+	boolean isDefined(int table)
+	{
+		return tableDefined[table];
+	}
+	
+	
+	/*
+	 * canonical Huffman codes (T.81 annex C) and the lookup table
+	 */
+	private void buildTable(int table)
+	{
+		short[] entries = lookup[table];
+		for(int i = 0; i < entries.length; i++)entries[i] = 0;
+		int code = 0, index = 0;
+		for(int length = 1; length <= 16; length++)
+		{
+			valueOffset[table][length] = index - code;
+			for(int i = 0; i < codeCounts[length]; i++, code++, index++)
+			{
+				if(length <= LOOKUP_BITS)
+				{
+					int shift = LOOKUP_BITS - length;
+					short entry = (short) (length << 8 | (values[table][index] & 0xff));
+					for(int j = code << shift, n = (code + 1) << shift; j < n; j++)entries[j] = entry;
+				}
+			}
+			maxCode[table][length] = codeCounts[length] > 0 ? code - 1 : -1;
+			code <<= 1;
+		}
+		tableDefined[table] = true;
+	}
+	
+	
+	/*
+	 * decodes the next Huffman coded value
+	 */
+	int decode(int table) throws IOException
+	{
+		if(bitCount < 16)fillBitBuffer();
+		int entry = lookup[table][(bitBuffer >>> (bitCount - LOOKUP_BITS)) & ((1 << LOOKUP_BITS) - 1)];
+		if(entry != 0)
+		{
+			bitCount -= entry >> 8;
+			return entry & 0xff;
+		}
+		int length = LOOKUP_BITS + 1;
+		int code = (bitBuffer >>> (bitCount - length)) & ((1 << length) - 1);
+		while(code > maxCode[table][length])
+		{
+			length++;
+			if(length > 16)throw new IOException("Invalid Huffman code");
+			code = (bitBuffer >>> (bitCount - length)) & ((1 << length) - 1);
+		}
+		bitCount -= length;
+		return values[table][code + valueOffset[table][length]] & 0xff;
+	}
+	
+	
+	/*
+	 * reads size bits as signed value (T.81 F.2.2.1 EXTEND), size up to 16
+	 */
+	int receiveExtend(int size)
+	{
+		if(bitCount < size)fillBitBuffer();
+		bitCount -= size;
+		int bits = (bitBuffer >>> bitCount) & ((1 << size) - 1);
+		// negative values have a leading 0 bit
+		return bits < 1 << (size - 1) ? bits - (1 << size) + 1 : bits;
+	}
+	
+	
+	/*
+	 * skips size bits
+	 */
+	void skipBits(int size)
+	{
+		if(bitCount < size)fillBitBuffer();
+		bitCount -= size;
+	}
+	
+	
+	/*
+	 * fills the bit buffer to more than 24 bits; stuffed zero bytes after 
+	 * 0xFF are removed, at a marker zero bits are supplied
+	 */
+	private void fillBitBuffer()
+	{
+		while(bitCount <= 24)
+		{
+			int b = 0;
+			if(!markerReached && in.hasRemaining())
+			{
+				b = in.get() & 0xff;
+				if(b == 0xFF)
+				{
+					if(in.hasRemaining() && in.get(in.position()) == 0)
+					{
+						in.get();
+					}
+					else
+					{
+						// the position is left at the marker
+						in.position(in.position() - 1);
+						markerReached = true;
+						b = 0;
+					}
+				}
+			}
+			bitBuffer = bitBuffer << 8 | b;
+			bitCount += 8;
+		}
+	}
+	
+	
+	/*
+	 * discards the rest of the entropy coded data up to the next marker
+	 */
+	void skipToMarker()
+	{
+		bitBuffer = bitCount = 0;
+		if(markerReached)
+		{
+			markerReached = false;
+			return;
+		}
+		while(in.hasRemaining())
+		{
+			if((in.get() & 0xff) == 0xFF && in.hasRemaining() && in.get(in.position()) != 0)
+			{
+				in.position(in.position() - 1);
+				return;
+			}
+		}
+	}
+	
+	
+	/*
+	 * reads the RST marker at the end of a restart interval
+	 */
+	void readRestartMarker() throws IOException
+	{
+		skipToMarker();
+		int position = in.position();
+		int marker = readMarker();
+		if(marker < RST0 || marker > RST7)
+		{
+			// the rest of the scan is missing, it is decoded from zero bits 
+			// and the position is left at the marker
+			in.position(position);
+			markerReached = true;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <JpegLosslessDecoder.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.dcm4che2.data.UID;
+
+/*
+ * Decoder for lossless JPEG (ITU T.81 process 14, transfer syntaxes 
+ * 1.2.840.10008.1.2.4.57 and .70) with all predictors, point transform 
+ * and restart intervals. The samples of a frame are written into a short[] 
+ * raster, interleaved if the frame has several components; values of up 
+ * to 16 bit are stored as unsigned bit pattern, so the pixel 
+ * representation is applied afterwards like for native pixel data. 
+ * An instance keeps its tables between frames and allocates nothing while 
+ * decoding; it is not thread-safe.
+ */
+public class JpegLosslessDecoder implements PixelDecoder {
+
+	private final JpegHuffmanReader reader = new JpegHuffmanReader();
+	
+	// frame
+	private int width, height, precision, components;
+	private final int[] componentIds = new int[4];
+	private int restartInterval;
+	
+	// scan
+	private int scanComponents, predictor, pointTransform;
+	private final int[] scanComponentIndex = new int[4];
+	private final int[] scanTable = new int[4];
+	
+	
+	public String[] getTransferSyntaxUIDs()
+	{
+		return new String[] {UID.JPEGLossless, UID.JPEGLosslessNonHierarchical14};
+	}
+	
+	
+	public boolean canDecode(int bitsAllocated, int samplesPerPixel)
+	{
+		return bitsAllocated <= 16 && samplesPerPixel >= 1 && samplesPerPixel <= 4;
+	}
+	
+	
+	public short[] decode(ByteBuffer frame, int columns, int rows, int samplesPerPixel, int bitsAllocated, short[] raster) throws IOException
+	{
+		raster = decode(frame, raster);
+		if(width != columns || height != rows || components != samplesPerPixel)
+		{
+			throw new IOException("JPEG frame of " + width + "x" + height + "x" + components 
+					+ " differs from the image of " + columns + "x" + rows + "x" + samplesPerPixel);
+		}
+		return raster;
+	}
+	
+	
+	/*
+	 * decodes a JPEG stream starting at the position of data into raster, 
+	 * which is allocated if it is null or too small; returns the raster
+	 */
+	public short[] decode(ByteBuffer data, short[] raster) throws IOException
+	{
+		width = height = components = restartInterval = 0;
+		reader.start(data);
+		try
+		{
+			if(reader.readMarker() != JpegHuffmanReader.SOI)throw new IOException("JPEG stream does not start with SOI");
+			for(int marker = reader.readMarker(); marker != JpegHuffmanReader.EOI; marker = reader.readMarker())
+			{
+				switch(marker)
+				{
+				case JpegHuffmanReader.SOF3:
+					readFrameHeader();
+					if(raster == null || raster.length < width * height * components)
+					{
+						raster = new short[width * height * components];
+					}
+					break;
+				case JpegHuffmanReader.DHT:
+					reader.readHuffmanTables();
+					break;
+				case JpegHuffmanReader.DRI:
+					reader.readUnsignedShort();
+					restartInterval = reader.readUnsignedShort();
+					break;
+				case JpegHuffmanReader.SOS:
+					if(components == 0)throw new IOException("JPEG scan before frame header");
+					readScanHeader();
+					decodeScan(raster);
+					break;
+				default:
+					if(marker >= 0xC0 && marker <= 0xCF)
+					{
+						throw new IOException("Not a lossless JPEG stream, SOF marker 0x" + Integer.toHexString(marker));
+					}
+					// APPn, COM, DNL, ...: skipped
+					reader.skipSegment();
+				}
+			}
+		}
+		catch(java.nio.BufferUnderflowException ex)
+		{
+			// a truncated stream ends the image, what was decoded is kept
+			if(components == 0)throw new IOException("Truncated JPEG stream");
+		}
+		finally
+		{
+			reader.finish();
+		}
+		return raster;
+	}
+	
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	
+	public int getPrecision()
+	{
+		return precision;
+	}
+	
+	
+	public int getComponents()
+	{
+		return components;
+	}
+	
+	
+	private void readFrameHeader() throws IOException
+	{
+		reader.readUnsignedShort();
+		precision = reader.readByte();
+		height = reader.readUnsignedShort();
+		width = reader.readUnsignedShort();
+		components = reader.readByte();
+		if(precision < 2 || precision > 16)throw new IOException("Unsupported JPEG precision " + precision);
+		if(height == 0)throw new IOException("JPEG with DNL height is not supported");
+		if(components < 1 || components > 4)throw new IOException("Unsupported JPEG component count " + components);
+		for(int i = 0; i < components; i++)
+		{
+			componentIds[i] = reader.readByte();
+			int sampling = reader.readByte();
+			reader.readByte();
+			if(sampling != 0x11 && components > 1)throw new IOException("Subsampled lossless JPEG is not supported");
+		}
+	}
+	
+	
+	private void readScanHeader() throws IOException
+	{
+		reader.readUnsignedShort();
+		scanComponents = reader.readByte();
+		if(scanComponents < 1 || scanComponents > components)throw new IOException("Invalid JPEG scan component count");
+		for(int i = 0; i < scanComponents; i++)
+		{
+			int id = reader.readByte();
+			int index = 0;
+			while(index < components && componentIds[index] != id)index++;
+			if(index == components)throw new IOException("Unknown JPEG scan component " + id);
+			scanComponentIndex[i] = index;
+			// lossless JPEG uses DC tables only
+			scanTable[i] = JpegHuffmanReader.DC + (reader.readByte() >> 4 & 3);
+			if(!reader.isDefined(scanTable[i]))throw new IOException("Undefined Huffman table " + scanTable[i]);
+		}
+		predictor = reader.readByte();
+		reader.readByte();
+		pointTransform = reader.readByte() & 0x0f;
+		if(predictor < 1 || predictor > 7)throw new IOException("Unsupported lossless JPEG predictor " + predictor);
+	}
+	
+	
+	private void decodeScan(short[] raster) throws IOException
+	{
+		final JpegHuffmanReader reader = this.reader;
+		final int stride = components;
+		final int rowStride = width * stride;
+		final int shift = pointTransform;
+		final int initial = 1 << (precision - shift - 1);
+		int mcusLeft = restartInterval;
+		// the first line of a scan and of each restart interval is predicted 
+		// from the left neighbour only
+		int firstLineEnd = rowStride;
+		boolean restarted = true;
+		for(int row = 0, rowStart = 0; row < height; row++, rowStart += rowStride)
+		{
+			for(int column = 0, pixel = rowStart; column < width; column++, pixel += stride)
+			{
+				if(restartInterval > 0)
+				{
+					if(mcusLeft == 0)
+					{
+						reader.readRestartMarker();
+						mcusLeft = restartInterval;
+						restarted = true;
+						firstLineEnd = rowStart + rowStride;
+					}
+					mcusLeft--;
+				}
+				for(int c = 0; c < scanComponents; c++)
+				{
+					final int i = pixel + scanComponentIndex[c];
+					int prediction;
+					if(restarted)
+					{
+						prediction = initial;
+					}
+					else if(i < firstLineEnd)
+					{
+						prediction = (raster[i - stride] & 0xffff) >>> shift;
+					}
+					else if(column == 0)
+					{
+						prediction = (raster[i - rowStride] & 0xffff) >>> shift;
+					}
+					else
+					{
+						final int a = (raster[i - stride] & 0xffff) >>> shift;
+						final int b = (raster[i - rowStride] & 0xffff) >>> shift;
+						switch(predictor)
+						{
+						case 1: prediction = a; break;
+						case 2: prediction = b; break;
+						case 3: prediction = (raster[i - rowStride - stride] & 0xffff) >>> shift; break;
+						case 4: prediction = a + b - ((raster[i - rowStride - stride] & 0xffff) >>> shift); break;
+						case 5: prediction = a + ((b - ((raster[i - rowStride - stride] & 0xffff) >>> shift)) >> 1); break;
+						case 6: prediction = b + ((a - ((raster[i - rowStride - stride] & 0xffff) >>> shift)) >> 1); break;
+						default: prediction = (a + b) >> 1;
+						}
+					}
+					// difference categories of T.81 table H.2, 16 has no extra bits
+					int category = reader.decode(scanTable[c]);
+					int difference = category == 0 ? 0 : category == 16 ? 32768 : reader.receiveExtend(category);
+					raster[i] = (short) (((prediction + difference) & 0xffff) << shift);
+				}
+				restarted = false;
+			}
+		}
+		// the position is left at the marker behind the entropy coded data
+		reader.skipToMarker();
+	}
+}
@@ -0,0 +1,718 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <JpegLsDecoder.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.dcm4che2.data.UID;
+
+/*
+ * Decoder for JPEG-LS (ITU T.87, transfer syntaxes 1.2.840.10008.1.2.4.80 
+ * lossless and .81 near-lossless) with 2 to 16 bit precision, preset 
+ * coding parameters, restart intervals and one component per scan or line 
+ * interleaved components. Samples are predicted from their neighbours 
+ * (median edge detector), corrected by the bias of one of 365 contexts of 
+ * quantized local gradients and coded as Golomb codes of the error; in 
+ * flat regions run lengths are coded instead. 
+ * The samples of a frame are written into a short[] raster, interleaved if 
+ * there are several components. Context tables and line buffers are kept 
+ * between frames and nothing is allocated while decoding; an instance is 
+ * not thread-safe.
+ */
+public class JpegLsDecoder implements PixelDecoder {
+
+	private static final int SOI = 0xD8;
+	private static final int EOI = 0xD9;
+	private static final int SOS = 0xDA;
+	private static final int DRI = 0xDD;
+	private static final int SOF55 = 0xF7;
+	private static final int LSE = 0xF8;
+	private static final int RST0 = 0xD0;
+	private static final int RST7 = 0xD7;
+	
+	// regular mode contexts, followed by the two run interruption contexts
+	private static final int CONTEXTS = 365;
+	private static final int MIN_C = -128;
+	private static final int MAX_C = 127;
+	
+	// run length order of the run index
+	private static final int[] J = {
+		0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 
+		4, 4, 5, 5, 6, 6, 7, 7, 8, 9, 10, 11, 12, 13, 14, 15
+	};
+	
+	private ByteBuffer in;
+	private long bitBuffer;
+	private int bitCount;
+	private boolean markerReached;
+	
+	// frame
+	private int width, height, precision, components;
+	private final int[] componentIds = new int[4];
+	private int restartInterval;
+	
+	// coding parameters
+	private int maxValue, t1, t2, t3, reset;
+	private int presetMaxValue, presetT1, presetT2, presetT3, presetReset;
+	private int near, range, qbpp, limit, pointTransform;
+	
+	// scan
+	private int scanComponents, interleave;
+	private final int[] scanComponentIndex = new int[4];
+	
+	// context variables
+	private final int[] a = new int[CONTEXTS + 2];
+	private final int[] b = new int[CONTEXTS + 2];
+	private final int[] c = new int[CONTEXTS + 2];
+	private final int[] n = new int[CONTEXTS + 2];
+	private final int[] nn = new int[2];
+	private final int[] runIndex = new int[4];
+	
+	// quantized gradient of each difference, at difference + maxValue
+	private byte[] gradients = null;
+	private int gradientsMaxValue = -1, gradientsT1, gradientsT2, gradientsT3, gradientsNear;
+	
+	// previous and current line of each component, with one sample before 
+	// and after the line
+	private final int[][][] lines = new int[4][2][];
+	
+	
+	public String[] getTransferSyntaxUIDs()
+	{
+		return new String[] {UID.JPEGLSLossless, UID.JPEGLSLossyNearLossless};
+	}
+	
+	
+	public boolean canDecode(int bitsAllocated, int samplesPerPixel)
+	{
+		return bitsAllocated <= 16 && samplesPerPixel >= 1 && samplesPerPixel <= 4;
+	}
+	
+	
+	public short[] decode(ByteBuffer frame, int columns, int rows, int samplesPerPixel, int bitsAllocated, short[] raster) throws IOException
+	{
+		raster = decode(frame, raster);
+		if(width != columns || height != rows || components != samplesPerPixel)
+		{
+			throw new IOException("JPEG-LS frame of " + width + "x" + height + "x" + components 
+					+ " differs from the image of " + columns + "x" + rows + "x" + samplesPerPixel);
+		}
+		return raster;
+	}
+	
+	
+	/*
+	 * decodes a JPEG-LS stream starting at the position of data into 
+	 * raster, which is allocated if it is null or too small; returns the 
+	 * raster
+	 */
+	public short[] decode(ByteBuffer data, short[] raster) throws IOException
+	{
+		in = data.duplicate();
+		width = height = components = restartInterval = 0;
+		presetMaxValue = presetT1 = presetT2 = presetT3 = presetReset = 0;
+		try
+		{
+			if(readMarker() != SOI)throw new IOException("JPEG-LS stream does not start with SOI");
+			for(int marker = readMarker(); marker != EOI; marker = readMarker())
+			{
+				switch(marker)
+				{
+				case SOF55:
+					readFrameHeader();
+					if(raster == null || raster.length < width * height * components)
+					{
+						raster = new short[width * height * components];
+					}
+					break;
+				case LSE:
+					readPresetParameters();
+					break;
+				case DRI:
+					readUnsignedShort();
+					restartInterval = readUnsignedShort();
+					break;
+				case SOS:
+					if(components == 0)throw new IOException("JPEG-LS scan before frame header");
+					readScanHeader();
+					decodeScan(raster);
+					break;
+				default:
+					if(marker >= 0xC0 && marker <= 0xCF)
+					{
+						throw new IOException("Not a JPEG-LS stream, SOF marker 0x" + Integer.toHexString(marker));
+					}
+					// APPn, COM, ...: skipped
+					skipSegment();
+				}
+			}
+		}
+		catch(java.nio.BufferUnderflowException ex)
+		{
+			// a truncated stream ends the image, what was decoded is kept
+			if(components == 0)throw new IOException("Truncated JPEG-LS stream");
+		}
+		finally
+		{
+			in = null;
+		}
+		return raster;
+	}
+	
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	
+	public int getPrecision()
+	{
+		return precision;
+	}
+	
+	
+	public int getComponents()
+	{
+		return components;
+	}
+	
+	
+	/*
+	 * the NEAR parameter of the last scan, 0 for lossless
+	 */
+	public int getNear()
+	{
+		return near;
+	}
+	
+	
+	private int readMarker() throws IOException
+	{
+		int value = in.get() & 0xff;
+		if(value != 0xFF)throw new IOException("JPEG-LS marker expected at " + (in.position() - 1));
+		// fill bytes
+		while(value == 0xFF)value = in.get() & 0xff;
+		return value;
+	}
+	
+	
+	private int readByte()
+	{
+		return in.get() & 0xff;
+	}
+	
+	
+	private int readUnsignedShort()
+	{
+		return (in.get() & 0xff) << 8 | (in.get() & 0xff);
+	}
+	
+	
+	private void skipSegment()
+	{
+		int length = readUnsignedShort();
+		in.position(in.position() + length - 2);
+	}
+	
+	
+	private void readFrameHeader() throws IOException
+	{
+		readUnsignedShort();
+		precision = readByte();
+		height = readUnsignedShort();
+		width = readUnsignedShort();
+		components = readByte();
+		if(precision < 2 || precision > 16)throw new IOException("Unsupported JPEG-LS precision " + precision);
+		if(height == 0 || width == 0)throw new IOException("JPEG-LS without size is not supported");
+		if(components < 1 || components > 4)throw new IOException("Unsupported JPEG-LS component count " + components);
+		for(int i = 0; i < components; i++)
+		{
+			componentIds[i] = readByte();
+			int sampling = readByte();
+			readByte();
+			if(sampling != 0x11)throw new IOException("Subsampled JPEG-LS is not supported");
+		}
+		for(int i = 0; i < components; i++)
+		{
+			for(int j = 0; j < 2; j++)
+			{
+				if(lines[i][j] == null || lines[i][j].length < width + 2)lines[i][j] = new int[width + 2];
+			}
+		}
+	}
+	
+	
+	private void readPresetParameters() throws IOException
+	{
+		int end = in.position() + readUnsignedShort();
+		int id = readByte();
+		if(id != 1)throw new IOException("JPEG-LS mapping tables are not supported");
+		presetMaxValue = readUnsignedShort();
+		presetT1 = readUnsignedShort();
+		presetT2 = readUnsignedShort();
+		presetT3 = readUnsignedShort();
+		presetReset = readUnsignedShort();
+		in.position(end);
+	}
+	
+	
+	private void readScanHeader() throws IOException
+	{
+		readUnsignedShort();
+		scanComponents = readByte();
+		if(scanComponents < 1 || scanComponents > components)throw new IOException("Invalid JPEG-LS scan component count");
+		for(int i = 0; i < scanComponents; i++)
+		{
+			int id = readByte();
+			int index = 0;
+			while(index < components && componentIds[index] != id)index++;
+			if(index == components)throw new IOException("Unknown JPEG-LS scan component " + id);
+			scanComponentIndex[i] = index;
+			if(readByte() != 0)throw new IOException("JPEG-LS mapping tables are not supported");
+		}
+		near = readByte();
+		interleave = readByte();
+		pointTransform = readByte() & 0x0f;
+		if(interleave > 1 && scanComponents > 1)throw new IOException("Sample interleaved JPEG-LS is not supported");
+		setCodingParameters();
+	}
+	
+	
+	/*
+	 * coding parameters from the preset or the defaults (T.87 C.2.4.1.1)
+	 */
+	private void setCodingParameters() throws IOException
+	{
+		maxValue = presetMaxValue > 0 ? presetMaxValue : (1 << precision) - 1;
+		if(near > Math.min(255, maxValue / 2))throw new IOException("Invalid JPEG-LS NEAR " + near);
+		int defaultT1, defaultT2, defaultT3;
+		if(maxValue >= 128)
+		{
+			int factor = (Math.min(maxValue, 4095) + 128) >> 8;
+			defaultT1 = clamp(factor * (3 - 2) + 2 + 3 * near, near + 1);
+			defaultT2 = clamp(factor * (7 - 3) + 3 + 5 * near, defaultT1);
+			defaultT3 = clamp(factor * (21 - 4) + 4 + 7 * near, defaultT2);
+		}
+		else
+		{
+			int factor = 256 / (maxValue + 1);
+			defaultT1 = clamp(Math.max(2, 3 / factor + 3 * near), near + 1);
+			defaultT2 = clamp(Math.max(3, 7 / factor + 5 * near), defaultT1);
+			defaultT3 = clamp(Math.max(4, 21 / factor + 7 * near), defaultT2);
+		}
+		t1 = presetT1 > 0 ? presetT1 : defaultT1;
+		t2 = presetT2 > 0 ? presetT2 : defaultT2;
+		t3 = presetT3 > 0 ? presetT3 : defaultT3;
+		reset = presetReset > 0 ? presetReset : 64;
+		
+		range = (maxValue + 2 * near) / (2 * near + 1) + 1;
+		qbpp = bitLength(range - 1);
+		int bpp = Math.max(2, bitLength(maxValue));
+		limit = 2 * (bpp + Math.max(8, bpp));
+		
+		if(gradients == null || gradientsMaxValue != maxValue || gradientsNear != near 
+				|| gradientsT1 != t1 || gradientsT2 != t2 || gradientsT3 != t3)
+		{
+			if(gradients == null || gradients.length < 2 * maxValue + 1)gradients = new byte[2 * maxValue + 1];
+			for(int d = -maxValue; d <= maxValue; d++)gradients[d + maxValue] = (byte) quantizeGradient(d);
+			gradientsMaxValue = maxValue;
+			gradientsNear = near;
+			gradientsT1 = t1;
+			gradientsT2 = t2;
+			gradientsT3 = t3;
+		}
+	}
+	
+	
+	private int clamp(int value, int low)
+	{
+		return value > maxValue || value < low ? low : value;
+	}
+	
+	
+	// number of bits of value
+	private static int bitLength(int value)
+	{
+		return 32 - Integer.numberOfLeadingZeros(value);
+	}
+	
+	
+	private int quantizeGradient(int d)
+	{
+		if(d <= -t3)return -4;
+		if(d <= -t2)return -3;
+		if(d <= -t1)return -2;
+		if(d < -near)return -1;
+		if(d <= near)return 0;
+		if(d < t1)return 1;
+		if(d < t2)return 2;
+		if(d < t3)return 3;
+		return 4;
+	}
+	
+	
+	private void resetContexts()
+	{
+		int initial = Math.max(2, (range + 32) >> 6);
+		for(int q = 0; q < CONTEXTS + 2; q++)
+		{
+			a[q] = initial;
+			b[q] = 0;
+			c[q] = 0;
+			n[q] = 1;
+		}
+		nn[0] = nn[1] = 0;
+		for(int i = 0; i < 4; i++)runIndex[i] = 0;
+	}
+	
+	
+	private void decodeScan(short[] raster) throws IOException
+	{
+		bitBuffer = 0;
+		bitCount = 0;
+		markerReached = false;
+		resetContexts();
+		int linesLeft = restartInterval;
+		for(int i = 0; i < scanComponents; i++)clearPreviousLine(scanComponentIndex[i], 0);
+		for(int row = 0; row < height; row++)
+		{
+			if(restartInterval > 0)
+			{
+				if(linesLeft == 0)
+				{
+					readRestartMarker();
+					resetContexts();
+					for(int i = 0; i < scanComponents; i++)clearPreviousLine(scanComponentIndex[i], row);
+					linesLeft = restartInterval;
+				}
+				linesLeft--;
+			}
+			// one component per scan, or the lines of all components in turn
+			for(int i = 0; i < scanComponents; i++)decodeLine(i, row, raster);
+		}
+		// the position is left at the marker behind the coded data
+		skipToMarker();
+	}
+	
+	
+	/*
+	 * the first line of a scan or restart interval is predicted from zeros
+	 */
+	private void clearPreviousLine(int component, int row)
+	{
+		int[] previous = lines[component][(row + 1) & 1];
+		for(int x = 0; x < width + 2; x++)previous[x] = 0;
+	}
+	
+	
+	/*
+	 * decodes one line of scan component i (T.87 A.2 to A.7)
+	 */
+	private void decodeLine(int i, int row, short[] raster) throws IOException
+	{
+		final int component = scanComponentIndex[i];
+		final int[] current = lines[component][row & 1];
+		final int[] previous = lines[component][(row + 1) & 1];
+		// edge samples: Ra and Rc of the first sample, Rd of the last
+		current[0] = previous[1];
+		previous[width + 1] = previous[width];
+		
+		final byte[] gradients = this.gradients;
+		final int[] a = this.a, b = this.b, c = this.c, n = this.n;
+		final int offset = maxValue;
+		final int near = this.near;
+		final int shift = pointTransform;
+		final int stride = components;
+		int o = row * width * stride + component;
+		for(int x = 1; x <= width; )
+		{
+			final int ra = current[x - 1];
+			final int rb = previous[x];
+			final int rc = previous[x - 1];
+			final int rd = previous[x + 1];
+			final int q1 = gradients[rd - rb + offset];
+			final int q2 = gradients[rb - rc + offset];
+			final int q3 = gradients[rc - ra + offset];
+			if(q1 == 0 && q2 == 0 && q3 == 0)
+			{
+				int count = decodeRun(i, current, previous, x, ra);
+				for(int end = x + count; x < end; x++, o += stride)
+				{
+					raster[o] = (short) (current[x] << shift);
+				}
+				continue;
+			}
+			int qs = (q1 * 9 + q2) * 9 + q3;
+			int sign = 1;
+			if(qs < 0)
+			{
+				sign = -1;
+				qs = -qs;
+			}
+			// median edge detector
+			int prediction;
+			if(rc >= Math.max(ra, rb))prediction = Math.min(ra, rb);
+			else if(rc <= Math.min(ra, rb))prediction = Math.max(ra, rb);
+			else prediction = ra + rb - rc;
+			prediction += sign * c[qs];
+			if(prediction < 0)prediction = 0;
+			else if(prediction > maxValue)prediction = maxValue;
+			
+			int count = n[qs];
+			int k = 0;
+			while(count << k < a[qs])k++;
+			int mapped = decodeGolomb(k, limit);
+			int error = (mapped >> 1) ^ -(mapped & 1);
+			if(near == 0 && k == 0 && 2 * b[qs] <= -count)error = -error - 1;
+			
+			// context update and bias correction (T.87 A.6)
+			int bias = b[qs] + error * (2 * near + 1);
+			a[qs] += error < 0 ? -error : error;
+			if(count == reset)
+			{
+				a[qs] >>= 1;
+				bias = bias >= 0 ? bias >> 1 : -((1 - bias) >> 1);
+				count >>= 1;
+			}
+			count++;
+			n[qs] = count;
+			if(bias <= -count)
+			{
+				bias += count;
+				if(c[qs] > MIN_C)c[qs]--;
+				if(bias <= -count)bias = -count + 1;
+			}
+			else if(bias > 0)
+			{
+				bias -= count;
+				if(c[qs] < MAX_C)c[qs]++;
+				if(bias > 0)bias = 0;
+			}
+			b[qs] = bias;
+			
+			int value = near == 0 ? prediction + sign * error : prediction + sign * error * (2 * near + 1);
+			if(value < -near)value += range * (2 * near + 1);
+			else if(value > maxValue + near)value -= range * (2 * near + 1);
+			if(value < 0)value = 0;
+			else if(value > maxValue)value = maxValue;
+			current[x] = value;
+			raster[o] = (short) (value << shift);
+			x++;
+			o += stride;
+		}
+	}
+	
+	
+	/*
+	 * run mode (T.87 A.7): decodes the run of samples equal to ra starting 
+	 * at x and the sample that interrupts it, returns the number of samples
+	 */
+	private int decodeRun(int i, int[] current, int[] previous, int x, int ra) throws IOException
+	{
+		final int remaining = width + 1 - x;
+		int count = 0;
+		while(readBit() == 1)
+		{
+			int run = Math.min(1 << J[runIndex[i]], remaining - count);
+			count += run;
+			if(run == 1 << J[runIndex[i]] && runIndex[i] < 31)runIndex[i]++;
+			if(count == remaining)break;
+		}
+		if(count < remaining)
+		{
+			if(J[runIndex[i]] > 0)count += readBits(J[runIndex[i]]);
+			if(count > remaining)throw new IOException("Invalid JPEG-LS run length");
+		}
+		for(int end = x + count; x < end; x++)current[x] = ra;
+		if(count == remaining)return count;
+		
+		// run interruption sample
+		final int rb = previous[x];
+		final int type = Math.abs(ra - rb) <= near ? 1 : 0;
+		final int q = CONTEXTS + type;
+		int temp = type == 0 ? a[q] : a[q] + (n[q] >> 1);
+		int k = 0;
+		while(n[q] << k < temp)k++;
+		int mapped = decodeGolomb(k, limit - J[runIndex[i]] - 1);
+		temp = mapped + type;
+		int map = temp & 1;
+		int error = (temp + map) >> 1;
+		if((k != 0 || 2 * nn[type] >= n[q]) == (map == 1))error = -error;
+		// update of the run interruption context
+		if(error < 0)nn[type]++;
+		a[q] += (mapped + 1 - type) >> 1;
+		if(n[q] == reset)
+		{
+			a[q] >>= 1;
+			n[q] >>= 1;
+			nn[type] >>= 1;
+		}
+		n[q]++;
+		if(type == 1)
+			current[x] = reconstruct(ra, error);
+		else
+			current[x] = reconstruct(rb, rb < ra ? -error : error);
+		if(runIndex[i] > 0)runIndex[i]--;
+		return count + 1;
+	}
+	
+	
+	/*
+	 * sample from prediction and quantized error, with the modulo reduction 
+	 * of the error range undone
+	 */
+	private int reconstruct(int prediction, int error)
+	{
+		int value = prediction + error * (2 * near + 1);
+		if(value < -near)value += range * (2 * near + 1);
+		else if(value > maxValue + near)value -= range * (2 * near + 1);
+		return value < 0 ? 0 : value > maxValue ? maxValue : value;
+	}
+	
+	
+	/*
+	 * limited length Golomb code (T.87 A.5.3)
+	 */
+	private int decodeGolomb(int k, int limit) throws IOException
+	{
+		int unary = 0;
+		while(true)
+		{
+			if(bitCount < 32)fillBitBuffer();
+			int top = (int) (bitBuffer >>> (bitCount - 32));
+			if(top != 0)
+			{
+				int zeros = Integer.numberOfLeadingZeros(top);
+				unary += zeros;
+				bitCount -= zeros + 1;
+				break;
+			}
+			unary += 32;
+			bitCount -= 32;
+			if(unary > limit)throw new IOException("Invalid JPEG-LS Golomb code");
+		}
+		if(unary < limit - qbpp - 1)
+		{
+			return k == 0 ? unary : unary << k | readBits(k);
+		}
+		if(unary > limit - qbpp - 1)throw new IOException("Invalid JPEG-LS Golomb code");
+		return readBits(qbpp) + 1;
+	}
+	
+	
+	private int readBit()
+	{
+		if(bitCount < 1)fillBitBuffer();
+		bitCount--;
+		return (int) (bitBuffer >>> bitCount) & 1;
+	}
+	
+	
+	private int readBits(int count)
+	{
+		if(bitCount < count)fillBitBuffer();
+		bitCount -= count;
+		return (int) (bitBuffer >>> bitCount) & ((1 << count) - 1);
+	}
+	
+	
+	/*
+	 * fills the bit buffer to more than 48 bits; after 0xFF the high bit of 
+	 * the next byte is a stuffed 0, at a marker zero bits are supplied
+	 */
+	private void fillBitBuffer()
+	{
+		while(bitCount <= 48)
+		{
+			if(markerReached || !in.hasRemaining())
+			{
+				bitBuffer <<= 8;
+				bitCount += 8;
+				continue;
+			}
+			int value = in.get() & 0xff;
+			if(value == 0xFF)
+			{
+				if(!in.hasRemaining() || (in.get(in.position()) & 0x80) != 0)
+				{
+					// the position is left at the marker
+					in.position(in.position() - 1);
+					markerReached = true;
+					continue;
+				}
+				bitBuffer = bitBuffer << 15 | 0xFF << 7 | (in.get() & 0x7f);
+				bitCount += 15;
+			}
+			else
+			{
+				bitBuffer = bitBuffer << 8 | value;
+				bitCount += 8;
+			}
+		}
+	}
+	
+	
+	private void skipToMarker()
+	{
+		bitBuffer = 0;
+		bitCount = 0;
+		if(markerReached)
+		{
+			markerReached = false;
+			return;
+		}
+		while(in.hasRemaining())
+		{
+			if((in.get() & 0xff) == 0xFF && in.hasRemaining() && (in.get(in.position()) & 0x80) != 0)
+			{
+				in.position(in.position() - 1);
+				return;
+			}
+		}
+	}
+	
+	
+	private void readRestartMarker() throws IOException
+	{
+		skipToMarker();
+		int position = in.position();
+		int marker = readMarker();
+		if(marker < RST0 || marker > RST7)
+		{
+			// the rest of the scan is missing, it is decoded from zero bits 
+			// and the position is left at the marker
+			in.position(position);
+			markerReached = true;
+		}
+	}
+}
@@ -30,8 +30,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
-import org.dcm4che2.data.BasicDicomObject;
-import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.data.DicomObject;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -156,12 +155,10 @@ public class MDVFileChooser extends ListActivity {
 		{
 			try 
 			{
-				// Create a DICOMReader to parse meta information
-				BasicDicomObject bdo = new BasicDicomObject();
-		    	DicomInputStream dis = new DicomInputStream(new java.io.BufferedInputStream(new java.io.FileInputStream(topDirectoryFile.getPath() + "/" + itemName)));
-		    	dis.readDicomObject(bdo, -1);
-		    	dis.close();
-		    	String strMetaInformation = bdo.getString(0x00020002); // MediaStorageSOPClassUID
+				// Parse only the meta information, the data set is read by 
+				// the viewer
+				DicomObject fmi = DicomHelper.readFileMetaInformation(topDirectoryFile.getPath() + "/" + itemName);
+		    	String strMetaInformation = fmi.getString(0x00020002); // MediaStorageSOPClassUID
 				
 				if(strMetaInformation != null && strMetaInformation.equals("1.2.840.10008.1.3.10")) {
 					
@@ -85,6 +85,19 @@ public class Messages
 	public static final int LABEL_LOCATION							= 46;
 	public static final int MENU_OPEN_JPEG							= 47;
 	public static final int LABEL_CONTRAST	 						= 48;
+	public static final int MENU_WINDOW_PRESETS						= 49;
+	public static final int PRESET_FULL_RANGE						= 50;
+	public static final int PRESET_WINDOW							= 51;
+	public static final int PRESET_VOI_LUT							= 52;
+	public static final int PRESET_BRAIN							= 53;
+	public static final int PRESET_SOFT_TISSUE						= 54;
+	public static final int PRESET_LUNG								= 55;
+	public static final int PRESET_BONE								= 56;
+	public static final int PRESET_AUTOMATIC						= 57;
+	public static final int MENU_CINE_PLAY							= 58;
+	public static final int MENU_CINE_STOP							= 59;
+	public static final int CINE_STATISTICS							= 60;
+	public static final int FILE_NOT_WRITTEN						= 61;
 	
 	
 	
@@ -141,7 +154,20 @@ public class Messages
 		"File written",
 		"Location",
 		"Open JPEG File",
-		"Contrast"
+		"Contrast",
+		"Window",
+		"Full Range",
+		"Window",
+		"VOI LUT",
+		"Brain",
+		"Soft Tissue",
+		"Lung",
+		"Bone",
+		"Automatic",
+		"Play Cine",
+		"Stop Cine",
+		"Frames per second: %1$.1f\nDecoding: %2$.1f ms per frame\nDropped frames: %3$d",
+		"File could not be written"
 		};
 	
 	private static String LabelsGer[] = {
@@ -193,7 +219,20 @@ public class Messages
 		"Datei geschrieben",
 		"Ort",
 		"JPEG Datei ffnen",
-		"Kontrast"
+		"Kontrast",
+		"Fensterung",
+		"Gesamter Wertebereich",
+		"Fenster",
+		"VOI LUT",
+		"Gehirn",
+		"Weichteile",
+		"Lunge",
+		"Knochen",
+		"Automatisch",
+		"Cine abspielen",
+		"Cine anhalten",
+		"Bilder pro Sekunde: %1$.1f\nDekodieren: %2$.1f ms pro Bild\nAusgelassene Bilder: %3$d",
+		"Datei konnte nicht geschrieben werden"
 	};
 	
 	private static final String ABOUT_MESSAGE_ENGL =
@@ -27,8 +27,12 @@ package de.mdv;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.VRMap;
 
 import android.app.Activity;
@@ -89,6 +93,12 @@ public class MinimalDicomViewer extends Activity
 	
 	private DicomImageView imageView;
 	private DicomFileLoader dicomFileLoader;
+	private RenderScheduler renderScheduler;
+	private CinePlayer cinePlayer;
+	private SeriesIndexer seriesIndexer;
+	private SliceSorter sliceSorter;
+	// headers of the directory, null until it is indexed
+	private DicomIndex dicomIndex = null;
 	private File[] fileArray = null;
 	private int currentFileIndex = -1;
 	private String actualFileName = "";
@@ -103,6 +113,8 @@ public class MinimalDicomViewer extends Activity
 	private static final short MENU_EXPORT_TO_JPEG = 5;
 	private static final short MENU_CONFIGURE_PATIENT_DATA = 6;
 	private static final short MENU_CONFIGURE_APP = 7;
+	private static final short MENU_WINDOW_PRESETS = 8;
+	private static final short MENU_CINE = 9;
 	
 	
 	private static final short PROGRESS_IMAGE_LOAD = 0;
@@ -141,6 +153,8 @@ public class MinimalDicomViewer extends Activity
         VRMap.loadVRMap( "org/dcm4che2/data/VRMap.ser" );
         setContentView(R.layout.main);
         imageView = (DicomImageView)findViewById(R.id.imageView);
+        renderScheduler = new RenderScheduler(renderingHandler);
+        renderScheduler.start();
         brightnessSeekBar = (SeekBar)findViewById(R.id.brightnessSeekBar);
         brightnessValue = (TextView)findViewById(R.id.brightnessValue);
         brightnessLabel = (TextView)findViewById(R.id.brightnessLabel);
@@ -159,23 +173,15 @@ public class MinimalDicomViewer extends Activity
 			
 			public void onStopTrackingTouch(SeekBar seekbar) {}
 			public void onStartTrackingTouch(SeekBar seekbar) {}
-			public synchronized void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) 
+			public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) 
 			{
 				brightnessValue.setText("" + 100*progress/255);
 				// on creation image on imageView may be null
 				if(allowEvaluateProgressValue && imageView.getImage() != null)
 				{
 					ImageGray16Bit imageGray16Bit = imageView.getImage();
-					int imageData[] = imageGray16Bit.getOriginalImageData();
-					if(imageData == null)
-					{
-						return;
-					}
 					iBrightness = progress;
-					imageData = DicomHelper.setBrightnessAndContrast(imageData, iBrightness, iContrast);
-					imageGray16Bit.setImageData(imageData);
-					imageView.setImage(imageGray16Bit);
-					imageView.draw();
+					renderScheduler.schedule(imageGray16Bit, iBrightness, iContrast);
 				}
 			}
 		});
@@ -187,23 +193,15 @@ public class MinimalDicomViewer extends Activity
 			public void onStopTrackingTouch(SeekBar seekbar) {}
 			public void onStartTrackingTouch(SeekBar seekbar) {}
 			
-			public synchronized void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) 
+			public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) 
 			{
 				contrastValue.setText("" + 100*progress/255);
 				// on creation image on imageView may be null
 				if(allowEvaluateProgressValue && imageView.getImage() != null)
 				{
 					ImageGray16Bit imageGray16Bit = imageView.getImage();
-					int imageData[] = imageGray16Bit.getOriginalImageData();
-					if(imageData == null)
-					{
-						return;
-					}
 					iContrast = progress;
-					imageData = DicomHelper.setBrightnessAndContrast(imageData, iBrightness, iContrast);
-					imageGray16Bit.setImageData(imageData);
-					imageView.setImage(imageGray16Bit);
-					imageView.draw();
+					renderScheduler.schedule(imageGray16Bit, iBrightness, iContrast);
 				}
 			}
 		});
@@ -313,6 +311,14 @@ public class MinimalDicomViewer extends Activity
 							Messages.getLabel(Messages.FILE_IS_NOT_IN_DIRECTORY, Messages.Language));
 				// Else initialize views and navigation bar
 				} 
+				else
+				{
+					// the file names say nothing about the slice position,
+					// index the directory and reorder the files anatomically 
+					// in the background
+					seriesIndexer = new SeriesIndexer(indexingHandler, currentFile.getParentFile());
+					seriesIndexer.start();
+				}
 			}
 		}
     }
@@ -330,6 +336,7 @@ public class MinimalDicomViewer extends Activity
     @Override
 	protected void onPause() 
     {
+		stopCine();
 		// We wait until the end of the loading thread
 		// before putting the activity in pause mode
 		if (dicomFileLoader != null) 
@@ -365,8 +372,15 @@ public class MinimalDicomViewer extends Activity
 	protected void onDestroy() 
     {
 		super.onDestroy();
+		stopCine();
+		if (seriesIndexer != null)seriesIndexer.cancel();
+		seriesIndexer = null;
+		if (sliceSorter != null)sliceSorter.cancel();
+		sliceSorter = null;
+		dicomIndex = null;
 		fileArray = null;
 		dicomFileLoader = null;
+		if (renderScheduler != null)renderScheduler.quit();
 		
 		// Free the drawable callback
 		if (imageView != null) 
@@ -426,10 +440,26 @@ public class MinimalDicomViewer extends Activity
 		menu.add(2, MENU_CONFIGURE_LANGUAGE, MENU_CONFIGURE_LANGUAGE, Messages.getLabel(Messages.CONFIGURE_LANGUAGE, Messages.Language));
 		menu.add(3, MENU_EXPORT_TO_JPEG, MENU_EXPORT_TO_JPEG, Messages.getLabel(Messages.MENU_EXPORT_TO_JPEG, Messages.Language));
 		menu.add(4, MENU_CONFIGURE_APP, MENU_CONFIGURE_APP, Messages.getLabel(Messages.MENU_CONFIGURE_APP, Messages.Language));
+		menu.add(5, MENU_WINDOW_PRESETS, MENU_WINDOW_PRESETS, Messages.getLabel(Messages.MENU_WINDOW_PRESETS, Messages.Language));
+		menu.add(6, MENU_CINE, MENU_CINE, Messages.getLabel(Messages.MENU_CINE_PLAY, Messages.Language));
 		return true;
     }
     
     
+    @Override
+	public boolean onPrepareOptionsMenu(Menu menu) 
+    {
+    	super.onPrepareOptionsMenu(menu);
+    	MenuItem cineItem = menu.findItem(MENU_CINE);
+    	if (cineItem != null)
+    	{
+    		boolean playing = cinePlayer != null && cinePlayer.isPlaying();
+    		cineItem.setTitle(Messages.getLabel(playing ? Messages.MENU_CINE_STOP : Messages.MENU_CINE_PLAY, Messages.Language));
+    	}
+    	return true;
+    }
+    
+    
     @Override
 	public boolean onMenuItemSelected(int featureId, MenuItem item) 
 	{
@@ -450,6 +480,17 @@ public class MinimalDicomViewer extends Activity
 			imageView.updateMatrix();
 			return true;
 			
+		case MENU_WINDOW_PRESETS:
+			showWindowPresetDialog();
+			return true;
+			
+		case MENU_CINE:
+			if (cinePlayer != null && cinePlayer.isPlaying())
+				showCineStatistics(stopCine());
+			else
+				startCine();
+			return true;
+			
 		case MENU_SWITCH_SEEKBAR_VISIBILITY:
 			visibility = brightnessSeekBar.getVisibility();
 			if(visibility == View.VISIBLE)
@@ -514,6 +555,37 @@ public class MinimalDicomViewer extends Activity
 	}
     
     
+    private void showWindowPresetDialog()
+    {
+    	if(imageView.getImage() == null)return;
+    	final ImageGray16Bit imageGray16Bit = imageView.getImage();
+    	final WindowPreset[] presets = imageGray16Bit.getWindowPresets();
+    	// the full range and the automatic window of the pixel values are 
+    	// always offered first
+    	final CharSequence[] items = new CharSequence[presets.length + 2];
+    	items[0] = Messages.getLabel(Messages.PRESET_FULL_RANGE, Messages.Language);
+    	items[1] = Messages.getLabel(Messages.PRESET_AUTOMATIC, Messages.Language);
+    	for(int i = 0; i < presets.length; i++)items[i + 2] = presets[i].getName();
+    	
+    	AlertDialog.Builder builder = new AlertDialog.Builder(this);
+    	builder.setTitle(Messages.getLabel(Messages.MENU_WINDOW_PRESETS, Messages.Language));
+    	builder.setItems(items, new DialogInterface.OnClickListener() 
+    	{
+    		public void onClick(DialogInterface dialog, int item) 
+    		{
+    			renderScheduler.cancel();
+    			if(item == 0)imageGray16Bit.setWindowToMinMax();
+    			else if(item == 1)imageGray16Bit.setWindowToPercentiles();
+    			else presets[item - 2].applyTo(imageGray16Bit.getWindowLevelEngine());
+    			imageView.draw();
+    			imageView.updateMatrix();
+    		}
+    	});
+    	AlertDialog alertDialog = builder.create();
+    	alertDialog.show();
+    }
+    
+    
     private boolean afdSeekBarVisibility;
     private boolean afdHideDisclaimerDialog;
     private boolean afdPatientDataVisibility;
@@ -640,22 +712,29 @@ public class MinimalDicomViewer extends Activity
 		if(resultPathFromFileDialog != null && (!resultPathFromFileDialog.equals(FileDialog.NO_FILE_SELECTED)))
 		{
 			if(!resultPathFromFileDialog.toLowerCase().endsWith(".jpg"))resultPathFromFileDialog += ".jpg";
-			Toast.makeText(this, Messages.getLabel(Messages.FILE_WRITTEN, Messages.Language) + ":\n" + resultPathFromFileDialog, Toast.LENGTH_SHORT).show();
-			exportJpegToFile(resultPathFromFileDialog);
+			int result = exportJpegToFile(resultPathFromFileDialog) ? Messages.FILE_WRITTEN : Messages.FILE_NOT_WRITTEN;
+			Toast.makeText(this, Messages.getLabel(result, Messages.Language) + ":\n" + resultPathFromFileDialog, Toast.LENGTH_SHORT).show();
 			// prevent from calling more than once
 			resultPathFromFileDialog = null;
 		}
     }
     
     
-    private void exportJpegToFile(String path)
+    private boolean exportJpegToFile(String path)
     {
     	ImageGray16Bit imageGray16Bit = imageView.getImage();
-    	Bitmap bitmap = Bitmap.createBitmap(imageGray16Bit.getImageData(), imageGray16Bit.getWidth(), imageGray16Bit.getHeight(), Bitmap.Config.ARGB_8888);
+    	if(imageGray16Bit == null) return false;
+    	// a full resolution bitmap of a large image would not fit into the 
+    	// heap, export it at the largest resolution within the memory budget
+    	int subsample = imageGray16Bit.getSubsampleFor(TileRenderer.getDefaultMemoryBudget() / 4);
+    	Bitmap bitmap = imageGray16Bit.createBitmap(subsample, Bitmap.Config.ARGB_8888);
+    	// no bitmap if the conversion was interrupted
+    	if(bitmap == null) return false;
     	try
     	{
     		ByteArrayOutputStream baos = new ByteArrayOutputStream();
     		bitmap.compress(Bitmap.CompressFormat.JPEG, 95, baos);
+    		BitmapPool.getSharedPool().release(bitmap);
     		File f = new File(path);
     		//new FileOutputStream("sdcard/image1.jpg")
     		f.createNewFile();
@@ -664,11 +743,12 @@ public class MinimalDicomViewer extends Activity
     		fo.write(baos.toByteArray());
     		fo.flush();
     		fo.close();
-
+    		return true;
     	}
     	catch(Exception ex)
     	{
     		ex.printStackTrace();
+    		return false;
     	}
     }
     
@@ -685,6 +765,91 @@ public class MinimalDicomViewer extends Activity
     
     
     
+    /**
+     * Plays the frames of a multi-frame file, or else the images of the
+     * directory, with the window of the displayed image.
+     */
+    private void startCine()
+    {
+    	ImageGray16Bit image = imageView.getImage();
+    	if (image == null || fileArray == null || currentFileIndex < 0)
+    	{
+    		return;
+    	}
+    	renderScheduler.cancel();
+    	try 
+    	{
+    		FrameReader frameReader = openFrameReader(fileArray[currentFileIndex]);
+    		File[] series = getSeriesFiles();
+    		if (frameReader.getFrameCount() > 1)
+    			cinePlayer = new CinePlayer(cineHandler, image, frameReader);
+    		else if (series.length > 1)
+    			cinePlayer = new CinePlayer(cineHandler, image, series, dicomIndex);
+    		else
+    			return;
+    	} 
+    	catch (IOException ex) 
+    	{
+    		return;
+    	}
+    	cinePlayer.start();
+    }
+    
+    
+    /*
+     * opens a file from its index entry if the directory is indexed, which 
+     * saves parsing the header
+     */
+    private FrameReader openFrameReader(File file) throws IOException
+    {
+    	DicomIndex.Instance instance = dicomIndex == null ? null : dicomIndex.getInstance(file);
+    	return instance != null ? new FrameReader(instance) : new FrameReader(file.getAbsolutePath());
+    }
+    
+    
+    /*
+     * the files of the directory, which belong to the series of the current 
+     * file - all of them as long as the directory is not indexed
+     */
+    private File[] getSeriesFiles()
+    {
+    	DicomIndex.Series series = dicomIndex == null ? null : dicomIndex.findSeries(fileArray[currentFileIndex]);
+    	if (series == null)return fileArray;
+    	ArrayList<File> files = new ArrayList<File>(series.getInstances().size());
+    	for (File file : fileArray)
+    	{
+    		if (dicomIndex.findSeries(file) == series)files.add(file);
+    	}
+    	return files.toArray(new File[files.size()]);
+    }
+    
+    
+    private CinePlayer stopCine()
+    {
+    	CinePlayer player = cinePlayer;
+    	cinePlayer = null;
+    	if (player != null)player.stopPlaying();
+    	return player;
+    }
+    
+    
+    private void showCineStatistics(CinePlayer player)
+    {
+    	if (player.getShownFrameCount() > 0)
+    	{
+    		String statistics = String.format(Messages.getLabel(Messages.CINE_STATISTICS, Messages.Language), 
+    				player.getAchievedFrameRate(), player.getAverageDecodeMillis(), player.getDroppedFrameCount());
+    		Toast.makeText(this, statistics, Toast.LENGTH_LONG).show();
+    	}
+    	// back to the still image
+    	if (imageView.getImage() != null)
+    	{
+    		imageView.draw();
+    		imageView.paintCachedSize();
+    	}
+    }
+    
+    
     private void paintInvert()
     {
     	// sometimes this happens on startup and image is not quite loaded
@@ -700,16 +865,9 @@ public class MinimalDicomViewer extends Activity
     	}
     	allowEvaluateProgressValue = false;
 		brightnessSeekBar.setProgress(0);
+		renderScheduler.cancel();
 		ImageGray16Bit imageGray16Bit = imageView.getImage();
-		int imageData[] = imageGray16Bit.getOriginalImageData();
-		if(imageData == null)
-		{
-			return;
-		}
-		imageData = DicomHelper.invertPixels(imageData);
-		imageGray16Bit.setImageData(imageData);
-		imageGray16Bit.setOriginalImageData(imageData);
-		imageView.setImage(imageGray16Bit);
+		imageGray16Bit.setInverted(!imageGray16Bit.isInverted());
 		imageView.draw();
 		imageView.paintCachedSize();
 		allowEvaluateProgressValue = true;
@@ -728,7 +886,7 @@ public class MinimalDicomViewer extends Activity
 	// Needed to implement the SeekBar.OnSeekBarChangeListener
 	public void onStopTrackingTouch(SeekBar seekBar) 
 	{
-		System.gc(); // TODO needed ?
+		// nothing to do, bitmaps are reused from the BitmapPool.
 	}
 	
 	
@@ -758,6 +916,9 @@ public class MinimalDicomViewer extends Activity
 		
 		try 
 		{
+			// results for the previous image are outdated
+			renderScheduler.cancel();
+			stopCine();
 			// Set the image
 			imageView.setImage(image);
 			
@@ -802,6 +963,87 @@ public class MinimalDicomViewer extends Activity
 	
 	
 	
+	private final Handler indexingHandler = new Handler() 
+	{
+		public void handleMessage(Message message) 
+		{
+			if (seriesIndexer == null || fileArray == null)return;
+			DicomIndex index = null;
+			switch (message.what) 
+			{
+			case FINISHED:
+				// results of an indexer started for another directory are dropped
+				if (!(message.obj instanceof DicomIndex))return;
+				index = (DicomIndex) message.obj;
+				if (!index.getSource().equals(seriesIndexer.getSource()))return;
+				break;
+			case UNCATCHABLE_ERROR_OCCURRED:
+			case OUT_OF_MEMORY:
+				// sorted without the index
+				break;
+			default:
+				return;
+			}
+			seriesIndexer = null;
+			// kept to open the files without parsing their headers again
+			dicomIndex = index;
+			if (sliceSorter != null)sliceSorter.cancel();
+			sliceSorter = new SliceSorter(sortingHandler, fileArray, index);
+			sliceSorter.start();
+		}
+	};
+	
+	
+	private final Handler sortingHandler = new Handler() 
+	{
+		public void handleMessage(Message message) 
+		{
+			// results of a sorter started for other files are dropped
+			if (message.what == FINISHED && message.obj == sliceSorter && sliceSorter != null
+					&& sliceSorter.getFiles() == fileArray && fileArray != null) 
+			{
+				File currentFile = fileArray[currentFileIndex];
+				fileArray = sliceSorter.getSortedFiles();
+				currentFileIndex = getIndex(currentFile);
+				sliceSorter = null;
+			}
+		}
+	};
+	
+	
+	private final Handler renderingHandler = new Handler() 
+	{
+		public void handleMessage(Message message) 
+		{
+			// frames superseded after they were sent are dropped as well
+			if (message.what == FINISHED && message.obj instanceof TileRenderer) 
+			{
+				// while playing, the cine frames take up the new settings
+				if (renderScheduler.isCurrent(message.arg1) && cinePlayer == null)
+					imageView.setTileRenderer((TileRenderer) message.obj);
+				else
+					((TileRenderer) message.obj).release();
+			}
+		}
+	};
+	
+	
+	private final Handler cineHandler = new Handler() 
+	{
+		public void handleMessage(Message message) 
+		{
+			// frames arriving after the player stopped are dropped
+			if (message.what == PROGRESSION_UPDATE && message.obj instanceof TileRenderer) 
+			{
+				if (cinePlayer != null && cinePlayer.isPlaying())
+					imageView.setTileRenderer((TileRenderer) message.obj);
+				else
+					((TileRenderer) message.obj).release();
+			}
+		}
+	};
+	
+	
 	private final Handler loadingHandler = new Handler() 
 	{
 		public void handleMessage(Message message) 
@@ -833,6 +1075,18 @@ public class MinimalDicomViewer extends Activity
 
 				break;
 
+			case PROGRESSION_UPDATE:
+				// the full size of the image shown reduced, which takes 
+				// over its current display settings
+				ImageGray16Bit shown = imageView.getImage();
+				if (message.obj instanceof ImageGray16Bit && shown != null && cinePlayer == null) 
+				{
+					ImageGray16Bit fullImage = (ImageGray16Bit) message.obj;
+					fullImage.getWindowLevelEngine().setDisplaySettings(shown.getWindowLevelEngine());
+					setImage(fullImage);
+				}
+				break;
+
 			case UNCATCHABLE_ERROR_OCCURRED:
 				try 
 				{
@@ -878,7 +1132,15 @@ public class MinimalDicomViewer extends Activity
 		// The file to load
 		private final String fileName;
 		
+		// its index entry, if the directory is indexed
+		private final DicomIndex.Instance instance;
+		
 		public DicomFileLoader(Handler handler, String fileName) 
+		{
+			this(handler, fileName, null);
+		}
+		
+		public DicomFileLoader(Handler handler, String fileName, DicomIndex.Instance instance) 
 		{
 			
 			if (handler == null)
@@ -890,6 +1152,7 @@ public class MinimalDicomViewer extends Activity
 				throw new NullPointerException("The file is null while calling the loading thread.");
 			
 			this.fileName = fileName;
+			this.instance = instance;
 		}
 		
 		public void run() 
@@ -907,39 +1170,63 @@ public class MinimalDicomViewer extends Activity
 			
 			mHandler.sendEmptyMessage(STARTED);
 			// If image exists show image
+			FrameReader frameReader;
+			DicomReader reader;
+			ImageGray16Bit image;
 			try {
-				ImageGray16Bit image = null;
-				
-				DicomReader reader = new DicomReader(fileName);
-				int pixelData[] = reader.getPixelData();
-				if(pixelData != null)
+				frameReader = instance != null ? new FrameReader(instance) : new FrameReader(fileName);
+				// a compressed frame is decoded reduced to the size of the 
+				// preview first, which is all the view shows until zoomed in
+				DicomObject header = frameReader.getHeader();
+				int previewScale = TileRenderer.getPreviewSubsample(header.getInt(Tag.Columns), header.getInt(Tag.Rows));
+				reader = new DicomReader(frameReader, 0, previewScale);
+				image = reader.getImage();
+				if(image != null)
 				{
-					image = new ImageGray16Bit();
-		    		image.setOriginalImageData(pixelData);
-		    		pixelData = DicomHelper.setBrightnessAndContrast(pixelData, iBrightness, iContrast);
-		    		image.setImageData(pixelData);
-		    		image.setWidth(reader.getWidth());
-		    		image.setHeight(reader.getHeight());
-		    		image.setPatientName(reader.getPatientName());
-		    		image.setPatientPrename(reader.getPatientPrename());
-		    		image.setPatientBirth(reader.getPatientBirthString());
+		    		image.setBrightnessAndContrast(iBrightness, iContrast);
 				}
 				// Send the LISA 16-Bit grayscale image
 				Message message = mHandler.obtainMessage();
 				message.what = FINISHED;
 				message.obj = image;
 				mHandler.sendMessage(message);
-				return;
-				
 			} 
 			catch (Exception ex) 
 			{
 				mHandler.sendEmptyMessage(FINISHED);
+				return;
+			}
+			if(image == null || reader.getScale() == 1)return;
+			
+			// then at full size, for the tiles drawn when zooming in
+			try
+			{
+				ImageGray16Bit fullImage = new DicomReader(frameReader, 0).getImage(false);
+				if(fullImage == null)return;
+				Message message = mHandler.obtainMessage();
+				message.what = PROGRESSION_UPDATE;
+				message.obj = fullImage;
+				mHandler.sendMessage(message);
+			}
+			catch (Exception ex) 
+			{
+				// the reduced image stays
+				ex.printStackTrace();
+			}
+			catch (OutOfMemoryError ex) 
+			{
+				ex.printStackTrace();
 			}
 		}
 	}
     
     
+    private DicomIndex.Instance getIndexedInstance()
+    {
+    	return dicomIndex == null ? null : dicomIndex.getInstance(fileArray[currentFileIndex]);
+    }
+    
+    
     public synchronized void prevImage(View view) 
     {
 		while (dicomFileLoader.isAlive()) 
@@ -964,7 +1251,7 @@ public class MinimalDicomViewer extends Activity
 		currentFileIndex--;
 		
 		actualFileName = fileArray[currentFileIndex].getAbsolutePath();
-		dicomFileLoader = new DicomFileLoader(loadingHandler,fileArray[currentFileIndex].getAbsolutePath());
+		dicomFileLoader = new DicomFileLoader(loadingHandler, actualFileName, getIndexedInstance());
 		
 		dicomFileLoader.start();
 	}
@@ -995,7 +1282,7 @@ public class MinimalDicomViewer extends Activity
 		currentFileIndex++;
 		// Start the loading thread to load the DICOM image
 		actualFileName = fileArray[currentFileIndex].getAbsolutePath();
-		dicomFileLoader = new DicomFileLoader(loadingHandler,  fileArray[currentFileIndex].getAbsolutePath());
+		dicomFileLoader = new DicomFileLoader(loadingHandler, actualFileName, getIndexedInstance());
 		
 		dicomFileLoader.start();
 	}
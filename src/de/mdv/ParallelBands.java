@@ -0,0 +1,216 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <ParallelBands.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Splits a range of rows (or pixels) into bands and processes them on a 
+ * shared pool with one thread per core. The calling thread processes the 
+ * last band itself and returns when all bands are done, it never returns 
+ * while a band is still writing into the caller's data. Called from a 
+ * thread of the pool the bands are processed sequentially, so nested 
+ * calls cannot deadlock.
+ */
+public final class ParallelBands {
+
+	public interface Task
+	{
+		/*
+		 * processes the items first (inclusive) to end (exclusive) as band 
+		 * number band
+		 */
+		void run(int first, int end, int band);
+	}
+	
+	
+	private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+	
+	// states of a band run by the pool
+	private static final int WAITING = 0;
+	private static final int RUNNING = 1;
+	private static final int DONE = 2;
+	
+	private static ExecutorService executor = null;
+	
+	
+	private static final class BandThread extends Thread
+	{
+		BandThread(Runnable runnable)
+		{
+			super(runnable, "ParallelBands");
+			setDaemon(true);
+		}
+	}
+	
+	
+	private ParallelBands()
+	{
+	}
+	
+	
+	private static synchronized ExecutorService getExecutor()
+	{
+		if(executor == null)
+		{
+			executor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() 
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					return new BandThread(runnable);
+				}
+			});
+		}
+		return executor;
+	}
+	
+	
+	/*
+	 * number of bands count items are split into, so each band has at 
+	 * least minPerBand items
+	 */
+	public static int getBandCount(int count, int minPerBand)
+	{
+		if(count <= 0)return 0;
+		if(PARALLELISM == 1 || Thread.currentThread() instanceof BandThread)return 1;
+		return Math.max(1, Math.min(PARALLELISM, count / Math.max(1, minPerBand)));
+	}
+	
+	
+	/*
+	 * processes the items 0 to count - 1 in getBandCount(count, minPerBand) 
+	 * bands of consecutive items and returns the number of bands; if the 
+	 * calling thread is interrupted, the bands not yet started are 
+	 * cancelled, the running ones are waited for and a 
+	 * CancellationException is thrown with the interrupt status kept, so 
+	 * the result of the task is incomplete and must not be used
+	 */
+	public static int execute(int count, int minPerBand, final Task task)
+	{
+		final int bands = getBandCount(count, minPerBand);
+		if(bands <= 1)
+		{
+			if(bands == 1)task.run(0, count, 0);
+			return bands;
+		}
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(bands - 1);
+		final AtomicIntegerArray states = new AtomicIntegerArray(bands - 1);
+		ExecutorService executor = getExecutor();
+		for(int band = 0; band < bands - 1; band++)
+		{
+			final int first = (int) ((long) count * band / bands);
+			final int end = (int) ((long) count * (band + 1) / bands);
+			final int index = band;
+			futures.add(executor.submit(new Callable<Object>() 
+			{
+				public Object call()
+				{
+					// a band cancelled before it started is skipped
+					if(!states.compareAndSet(index, WAITING, RUNNING))return null;
+					try
+					{
+						task.run(first, end, index);
+					}
+					finally
+					{
+						synchronized(states)
+						{
+							states.set(index, DONE);
+							states.notifyAll();
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		boolean completed = false;
+		try
+		{
+			task.run((int) ((long) count * (bands - 1) / bands), count, bands - 1);
+			for(Future<Object> future : futures)
+			{
+				future.get();
+			}
+			completed = true;
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while processing bands");
+		}
+		catch(ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if(cause instanceof RuntimeException)throw (RuntimeException) cause;
+			if(cause instanceof Error)throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+		finally
+		{
+			if(!completed)cancel(futures, states);
+		}
+		return bands;
+	}
+	
+	
+	/*
+	 * cancels the bands not yet started and waits for the running ones
+	 */
+	private static void cancel(List<Future<Object>> futures, AtomicIntegerArray states)
+	{
+		for(int band = 0; band < states.length(); band++)
+		{
+			if(states.compareAndSet(band, WAITING, DONE))futures.get(band).cancel(false);
+		}
+		boolean interrupted = Thread.interrupted();
+		synchronized(states)
+		{
+			for(int band = 0; band < states.length(); band++)
+			{
+				while(states.get(band) != DONE)
+				{
+					try
+					{
+						states.wait();
+					}
+					catch(InterruptedException ex)
+					{
+						interrupted = true;
+					}
+				}
+			}
+		}
+		if(interrupted)Thread.currentThread().interrupt();
+	}
+}
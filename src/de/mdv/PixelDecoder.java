@@ -0,0 +1,58 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <PixelDecoder.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Decoder for the encapsulated pixel data of one or more transfer 
+ * syntaxes. Implementations need a public no-argument constructor; the 
+ * PixelDecoderRegistry creates one instance per thread, so an instance 
+ * may keep tables and buffers between frames without synchronization.
+ */
+public interface PixelDecoder
+{
+	/*
+	 * the transfer syntaxes this decoder handles
+	 */
+	String[] getTransferSyntaxUIDs();
+	
+	
+	/*
+	 * whether frames with the given bits allocated and samples per pixel 
+	 * can be decoded
+	 */
+	boolean canDecode(int bitsAllocated, int samplesPerPixel);
+	
+	
+	/*
+	 * decodes the compressed frame starting at the position of frame into 
+	 * raster, one short per sample with the samples of a pixel interleaved; 
+	 * the raster is allocated if it is null or smaller than 
+	 * columns * rows * samplesPerPixel; returns the raster
+	 */
+	short[] decode(ByteBuffer frame, int columns, int rows, int samplesPerPixel, int bitsAllocated, short[] raster) throws IOException;
+}
@@ -0,0 +1,262 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <PixelDecoderRegistry.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4che2.data.ConfigurationError;
+import org.dcm4che2.data.ResourceLocator;
+
+/*
+ * Finds the PixelDecoder for a transfer syntax. The built-in decoders are 
+ * registered first, then the classes listed in the resources named 
+ * de.mdv.PixelDecoder on the classpath (one class name per line, like the 
+ * other resources found by ResourceLocator), so a decoder can be added or 
+ * replaced without changes to the reader. 
+ * Each thread gets its own decoder instances. Frames decoded through the 
+ * registry are counted and timed per transfer syntax.
+ */
+public final class PixelDecoderRegistry {
+
+	private static final String[] BUILT_IN = {
+		"de.mdv.JpegLosslessDecoder",
+		"de.mdv.JpegBaselineDecoder",
+		"de.mdv.JpegLsDecoder",
+		"de.mdv.RleDecoder"
+	};
+	
+	// transfer syntax UID to decoder class
+	private static Map<String, Class<?>> decoderClasses = null;
+	
+	// transfer syntax UID to frames, nanoseconds and compressed bytes
+	private static final Map<String, long[]> statistics = new HashMap<String, long[]>();
+	
+	private static final ThreadLocal<Map<Class<?>, PixelDecoder>> instances = new ThreadLocal<Map<Class<?>, PixelDecoder>>()
+	{
+		protected Map<Class<?>, PixelDecoder> initialValue()
+		{
+			return new HashMap<Class<?>, PixelDecoder>();
+		}
+	};
+	
+	
+	private PixelDecoderRegistry()
+	{
+	}
+	
+	
+	private static synchronized Map<String, Class<?>> getDecoderClasses()
+	{
+		if(decoderClasses == null)
+		{
+			Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+			for(int i = 0; i < BUILT_IN.length; i++)add(classes, BUILT_IN[i]);
+			try
+			{
+				List<String> names = ResourceLocator.findResources(PixelDecoder.class);
+				for(int i = 0; i < names.size(); i++)add(classes, names.get(i));
+			}
+			catch(ConfigurationError ex)
+			{
+				ex.printStackTrace();
+			}
+			decoderClasses = classes;
+		}
+		return decoderClasses;
+	}
+	
+	
+	/*
+	 * registers the decoder class for its transfer syntaxes, replacing the 
+	 * decoders registered before; returns false if it cannot be loaded
+	 */
+	public static synchronized boolean register(String className)
+	{
+		return add(getDecoderClasses(), className);
+	}
+	
+	
+	private static boolean add(Map<String, Class<?>> classes, String className)
+	{
+		try
+		{
+			PixelDecoder decoder = (PixelDecoder) ResourceLocator.createInstance(className);
+			String[] uids = decoder.getTransferSyntaxUIDs();
+			for(int i = 0; i < uids.length; i++)classes.put(uids[i], decoder.getClass());
+			return true;
+		}
+		catch(ConfigurationError ex)
+		{
+			ex.printStackTrace();
+		}
+		catch(ClassCastException ex)
+		{
+			ex.printStackTrace();
+		}
+		return false;
+	}
+	
+	
+	public static synchronized String[] getTransferSyntaxUIDs()
+	{
+		return getDecoderClasses().keySet().toArray(new String[0]);
+	}
+	
+	
+	/*
+	 * the decoder of this thread for the transfer syntax, or null if there 
+	 * is none
+	 */
+	public static PixelDecoder getDecoder(String transferSyntaxUID)
+	{
+		Class<?> decoderClass;
+		synchronized(PixelDecoderRegistry.class)
+		{
+			decoderClass = getDecoderClasses().get(transferSyntaxUID);
+		}
+		if(decoderClass == null)return null;
+		Map<Class<?>, PixelDecoder> decoders = instances.get();
+		PixelDecoder decoder = decoders.get(decoderClass);
+		if(decoder == null)
+		{
+			decoder = (PixelDecoder) ResourceLocator.createInstance(decoderClass.getName());
+			decoders.put(decoderClass, decoder);
+		}
+		return decoder;
+	}
+	
+	
+	public static boolean canDecode(String transferSyntaxUID, int bitsAllocated, int samplesPerPixel)
+	{
+		PixelDecoder decoder = getDecoder(transferSyntaxUID);
+		return decoder != null && decoder.canDecode(bitsAllocated, samplesPerPixel);
+	}
+	
+	
+	/*
+	 * the largest factor by which the decoder of the transfer syntax can 
+	 * reduce a frame while decoding it, 1 if it cannot
+	 */
+	public static int getMaxScale(String transferSyntaxUID)
+	{
+		PixelDecoder decoder = getDecoder(transferSyntaxUID);
+		return decoder instanceof ScaledPixelDecoder ? ((ScaledPixelDecoder) decoder).getMaxScale() : 1;
+	}
+	
+	
+	/*
+	 * decodes a frame with the decoder of the transfer syntax, see 
+	 * PixelDecoder.decode
+	 */
+	public static short[] decode(String transferSyntaxUID, ByteBuffer frame, int columns, int rows, int samplesPerPixel, int bitsAllocated, short[] raster) throws IOException
+	{
+		return decode(transferSyntaxUID, frame, columns, rows, samplesPerPixel, bitsAllocated, 1, raster);
+	}
+	
+	
+	/*
+	 * decodes a frame reduced by scale, a power of 2 up to getMaxScale, see 
+	 * ScaledPixelDecoder.decode
+	 */
+	public static short[] decode(String transferSyntaxUID, ByteBuffer frame, int columns, int rows, int samplesPerPixel, int bitsAllocated, int scale, short[] raster) throws IOException
+	{
+		PixelDecoder decoder = getDecoder(transferSyntaxUID);
+		if(decoder == null)throw new IOException("No decoder for transfer syntax " + transferSyntaxUID);
+		if(scale > 1 && (!(decoder instanceof ScaledPixelDecoder) || scale > ((ScaledPixelDecoder) decoder).getMaxScale()))
+		{
+			throw new IllegalArgumentException("The decoder for " + transferSyntaxUID + " cannot reduce by " + scale);
+		}
+		int length = frame.remaining();
+		long start = System.nanoTime();
+		if(scale > 1)
+			raster = ((ScaledPixelDecoder) decoder).decode(frame, columns, rows, samplesPerPixel, bitsAllocated, scale, raster);
+		else
+			raster = decoder.decode(frame, columns, rows, samplesPerPixel, bitsAllocated, raster);
+		long nanos = System.nanoTime() - start;
+		synchronized(statistics)
+		{
+			long[] counters = statistics.get(transferSyntaxUID);
+			if(counters == null)statistics.put(transferSyntaxUID, counters = new long[3]);
+			counters[0]++;
+			counters[1] += nanos;
+			counters[2] += length;
+		}
+		return raster;
+	}
+	
+	
+	public static long getDecodedFrameCount(String transferSyntaxUID)
+	{
+		return getStatistic(transferSyntaxUID, 0);
+	}
+	
+	
+	public static long getDecodeNanos(String transferSyntaxUID)
+	{
+		return getStatistic(transferSyntaxUID, 1);
+	}
+	
+	
+	public static long getCompressedBytes(String transferSyntaxUID)
+	{
+		return getStatistic(transferSyntaxUID, 2);
+	}
+	
+	
+	/*
+	 * mean decode time per frame in milliseconds
+	 */
+	public static double getAverageDecodeMillis(String transferSyntaxUID)
+	{
+		synchronized(statistics)
+		{
+			long[] counters = statistics.get(transferSyntaxUID);
+			return counters == null || counters[0] == 0 ? 0. : counters[1] / 1e6 / counters[0];
+		}
+	}
+	
+	
+	public static void resetStatistics()
+	{
+		synchronized(statistics)
+		{
+			statistics.clear();
+		}
+	}
+	
+	
+	private static long getStatistic(String transferSyntaxUID, int index)
+	{
+		synchronized(statistics)
+		{
+			long[] counters = statistics.get(transferSyntaxUID);
+			return counters == null ? 0 : counters[index];
+		}
+	}
+}
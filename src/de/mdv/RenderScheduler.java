@@ -0,0 +1,180 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <RenderScheduler.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.util.concurrent.CancellationException;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Message;
+
+/*
+ * Renders brightness/contrast changes on a background thread. Rapid 
+ * requests are coalesced: a rendering in progress is completed, meanwhile 
+ * newer requests replace each other so only the latest one is rendered 
+ * next, and at most one frame is published per FRAME_INTERVAL. cancel() 
+ * interrupts and drops the rendering in progress, e.g. when another image 
+ * is shown. 
+ * A finished rendering is sent as FINISHED message with a TileRenderer 
+ * holding the preview bitmap as obj and its generation as arg1; the 
+ * receiver should ignore it unless isCurrent(arg1).
+ */
+public class RenderScheduler extends Thread 
+{
+	
+	// minimum time between two published frames in milliseconds
+	private static final long FRAME_INTERVAL = 16;
+	
+	private final Handler mHandler;
+	
+	private ImageGray16Bit pendingImage = null;
+	private int pendingBrightness, pendingContrast;
+	private int generation = 0;
+	private boolean rendering = false;
+	private boolean quit = false;
+	private long lastFrameTime = 0;
+	
+	
+	public RenderScheduler(Handler handler)
+	{
+		if (handler == null)
+			throw new NullPointerException("The handler is null while calling the rendering thread.");
+		
+		mHandler = handler;
+		setDaemon(true);
+	}
+	
+	
+	/*
+	 * requests a rendering of the image with the given brightness and 
+	 * contrast, replacing a pending request that has not been started
+	 */
+	public synchronized void schedule(ImageGray16Bit image, int brightness, int contrast)
+	{
+		pendingImage = image;
+		pendingBrightness = brightness;
+		pendingContrast = contrast;
+		notifyAll();
+	}
+	
+	
+	/*
+	 * drops the pending request and the rendering in progress
+	 */
+	public synchronized void cancel()
+	{
+		pendingImage = null;
+		generation++;
+		if(rendering)interrupt();
+		notifyAll();
+	}
+	
+	
+	public synchronized void quit()
+	{
+		quit = true;
+		cancel();
+	}
+	
+	
+	/*
+	 * true if a rendering of the given generation has not been superseded
+	 */
+	public synchronized boolean isCurrent(int generation)
+	{
+		return this.generation == generation;
+	}
+	
+	
+	public void run()
+	{
+		while(true)
+		{
+			ImageGray16Bit image;
+			int brightness, contrast, frameGeneration;
+			synchronized(this)
+			{
+				try
+				{
+					long wait = FRAME_INTERVAL - (System.currentTimeMillis() - lastFrameTime);
+					while(!quit && (pendingImage == null || wait > 0))
+					{
+						// further requests arriving meanwhile are coalesced
+						wait(pendingImage == null ? 0 : wait);
+						wait = FRAME_INTERVAL - (System.currentTimeMillis() - lastFrameTime);
+					}
+				}
+				catch(InterruptedException ex)
+				{
+					continue;
+				}
+				if(quit)return;
+				image = pendingImage;
+				brightness = pendingBrightness;
+				contrast = pendingContrast;
+				frameGeneration = generation;
+				pendingImage = null;
+				rendering = true;
+			}
+			
+			TileRenderer renderer = null;
+			try
+			{
+				image.setBrightnessAndContrast(brightness, contrast);
+				renderer = new TileRenderer(image);
+				renderer.createPreview();
+			}
+			catch(OutOfMemoryError ex)
+			{
+				renderer = null;
+			}
+			catch(CancellationException ex)
+			{
+				// cancelled while the pixels were processed
+				renderer = null;
+			}
+			
+			synchronized(this)
+			{
+				rendering = false;
+				// clear an interrupt of a cancelled rendering
+				interrupted();
+				lastFrameTime = System.currentTimeMillis();
+				Bitmap preview = renderer == null ? null : renderer.getPreview();
+				if(preview == null)continue;
+				if(frameGeneration != generation)
+				{
+					renderer.release();
+					continue;
+				}
+			}
+			Message message = mHandler.obtainMessage();
+			message.what = MinimalDicomViewer.FINISHED;
+			message.arg1 = frameGeneration;
+			message.obj = renderer;
+			mHandler.sendMessage(message);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <RleDecoder.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.dcm4che2.data.UID;
+
+/*
+ * Decoder for RLE Lossless (transfer syntax 1.2.840.10008.1.2.5, DICOM 
+ * PS3.5 annex G). A frame starts with a 64 byte header holding the number 
+ * of segments and their offsets; each segment is a PackBits coded byte 
+ * plane, the most significant byte of each sample first. The segments are 
+ * independent and decoded in parallel, each straight into its byte lane 
+ * of a native little endian frame (samples interleaved), which is then 
+ * read like uncompressed pixel data.
+ */
+public class RleDecoder implements PixelDecoder {
+
+	private static final int HEADER_LENGTH = 64;
+	private static final int MAX_SEGMENTS = 15;
+	
+	// decoded frame, reused for the next one
+	private byte[] frameBytes = null;
+	
+	
+	public String[] getTransferSyntaxUIDs()
+	{
+		return new String[] {UID.RLELossless};
+	}
+	
+	
+	public boolean canDecode(int bitsAllocated, int samplesPerPixel)
+	{
+		return (bitsAllocated == 8 || bitsAllocated == 16) 
+				&& samplesPerPixel >= 1 && samplesPerPixel * bitsAllocated / 8 <= MAX_SEGMENTS;
+	}
+	
+	
+	public short[] decode(ByteBuffer frame, int columns, int rows, int samplesPerPixel, int bitsAllocated, short[] raster) throws IOException
+	{
+		frameBytes = decode(frame, columns * rows, samplesPerPixel, bitsAllocated, frameBytes);
+		return toRaster(frameBytes, columns * rows * samplesPerPixel, bitsAllocated, raster);
+	}
+	
+	
+	/*
+	 * decodes several frames into new rasters like decode above; the 
+	 * segments of all frames are decoded in parallel, which keeps the 
+	 * cores busy even if a frame has a single segment (8 bit gray scale)
+	 */
+	public static short[][] decode(ByteBuffer[] frames, int columns, int rows, int samplesPerPixel, int bitsAllocated) throws IOException
+	{
+		byte[][] outs = new byte[frames.length][];
+		decode(frames, columns * rows, samplesPerPixel, bitsAllocated, outs);
+		short[][] rasters = new short[frames.length][];
+		for(int f = 0; f < frames.length; f++)
+		{
+			rasters[f] = toRaster(outs[f], columns * rows * samplesPerPixel, bitsAllocated, null);
+			outs[f] = null;
+		}
+		return rasters;
+	}
+	
+	
+	// samples of a decoded little endian frame
+	private static short[] toRaster(byte[] bytes, int samples, int bitsAllocated, short[] raster)
+	{
+		if(raster == null || raster.length < samples)raster = new short[samples];
+		if(bitsAllocated == 8)
+		{
+			for(int i = 0; i < samples; i++)raster[i] = (short) (bytes[i] & 0xff);
+		}
+		else
+		{
+			for(int i = 0, j = 0; i < samples; i++, j += 2)raster[i] = (short) ((bytes[j] & 0xff) | bytes[j + 1] << 8);
+		}
+		return raster;
+	}
+	
+	
+	/*
+	 * decodes one frame into out, which is allocated if it is null or too 
+	 * small; returns out
+	 */
+	public static byte[] decode(ByteBuffer frame, int pixels, int samplesPerPixel, int bitsAllocated, byte[] out) throws IOException
+	{
+		byte[][] outs = new byte[][] {out};
+		decode(new ByteBuffer[] {frame}, pixels, samplesPerPixel, bitsAllocated, outs);
+		return outs[0];
+	}
+	
+	
+	/*
+	 * decodes several frames, the segments of all frames in parallel; 
+	 * outs[i] receives frame i and is allocated if it is null or too small
+	 */
+	public static void decode(final ByteBuffer[] frames, final int pixels, final int samplesPerPixel, final int bitsAllocated, final byte[][] outs) throws IOException
+	{
+		if(bitsAllocated != 8 && bitsAllocated != 16)throw new IOException("Unsupported RLE bits allocated " + bitsAllocated);
+		final int bytesPerSample = bitsAllocated / 8;
+		final int segments = samplesPerPixel * bytesPerSample;
+		if(segments < 1 || segments > MAX_SEGMENTS)throw new IOException("Unsupported RLE samples per pixel " + samplesPerPixel);
+		final int length = pixels * segments;
+		final int[][] offsets = new int[frames.length][];
+		for(int f = 0; f < frames.length; f++)
+		{
+			offsets[f] = readHeader(frames[f], segments);
+			if(outs[f] == null || outs[f].length < length)outs[f] = new byte[length];
+		}
+		
+		ParallelBands.execute(frames.length * segments, 1, new ParallelBands.Task() 
+		{
+			public void run(int first, int end, int band)
+			{
+				for(int item = first; item < end; item++)
+				{
+					int f = item / segments;
+					int segment = item % segments;
+					// segment s holds byte (bytesPerSample - 1 - s % bytesPerSample) 
+					// of sample s / bytesPerSample
+					int lane = segment / bytesPerSample * bytesPerSample + bytesPerSample - 1 - segment % bytesPerSample;
+					decodeSegment(frames[f], offsets[f][segment], offsets[f][segment + 1], outs[f], lane, segments, pixels);
+				}
+			}
+		});
+	}
+	
+	
+	/*
+	 * returns the absolute start of each segment and the end of the last
+	 */
+	private static int[] readHeader(ByteBuffer frame, int segments) throws IOException
+	{
+		final int base = frame.position();
+		if(frame.remaining() < HEADER_LENGTH)throw new IOException("RLE frame without header");
+		int count = readInt(frame, base);
+		if(count != segments)throw new IOException("RLE frame has " + count + " segments instead of " + segments);
+		int[] offsets = new int[segments + 1];
+		for(int s = 0; s < segments; s++)
+		{
+			offsets[s] = base + readInt(frame, base + 4 + 4 * s);
+			if(offsets[s] < base + HEADER_LENGTH || offsets[s] > frame.limit())throw new IOException("Invalid RLE segment offset");
+		}
+		offsets[segments] = frame.limit();
+		return offsets;
+	}
+	
+	
+	// the header is little endian
+	private static int readInt(ByteBuffer frame, int position)
+	{
+		return (frame.get(position) & 0xff) 
+				| (frame.get(position + 1) & 0xff) << 8 
+				| (frame.get(position + 2) & 0xff) << 16 
+				| (frame.get(position + 3) & 0xff) << 24;
+	}
+	
+	
+	/*
+	 * PackBits: a byte n of 0..127 is followed by n + 1 literal bytes, a 
+	 * byte n of -127..-1 by one byte repeated 1 - n times, -128 is a no-op; 
+	 * bytes missing at the end of a damaged segment are set to 0
+	 */
+	private static void decodeSegment(ByteBuffer frame, int position, int end, byte[] out, int offset, int stride, int count)
+	{
+		int o = offset;
+		final int outEnd = offset + count * stride;
+		while(o < outEnd && position < end)
+		{
+			int n = frame.get(position++);
+			if(n >= 0)
+			{
+				for(int last = Math.min(position + n + 1, end); position < last && o < outEnd; o += stride)
+				{
+					out[o] = frame.get(position++);
+				}
+			}
+			else if(n != -128 && position < end)
+			{
+				byte value = frame.get(position++);
+				for(int i = 1 - n; i > 0 && o < outEnd; i--, o += stride)
+				{
+					out[o] = value;
+				}
+			}
+		}
+		for(; o < outEnd; o += stride)out[o] = 0;
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <ScaledPixelDecoder.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * PixelDecoder that can reduce a frame while decoding it, which costs less 
+ * than decoding it in full size and subsampling it afterwards.
+ */
+public interface ScaledPixelDecoder extends PixelDecoder
+{
+	/*
+	 * the largest factor by which a frame can be reduced, a power of 2
+	 */
+	int getMaxScale();
+	
+	
+	/*
+	 * like PixelDecoder.decode, but the frame is reduced by scale, a power 
+	 * of 2 up to getMaxScale, to (columns + scale - 1) / scale by 
+	 * (rows + scale - 1) / scale pixels
+	 */
+	short[] decode(ByteBuffer frame, int columns, int rows, int samplesPerPixel, int bitsAllocated, int scale, short[] raster) throws IOException;
+}
@@ -0,0 +1,257 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <SeriesIndexer.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.media.DicomDirReader;
+import org.dcm4che2.util.CloseUtils;
+
+import android.os.Handler;
+import android.os.Message;
+
+/*
+ * Parses the headers of all DICOM files of a directory or of all files 
+ * referenced by a DICOMDIR on a pool of worker threads - one per core - and 
+ * builds a DicomIndex. The indexing runs in the background of the viewer, 
+ * the handler receives FINISHED with the DicomIndex as obj, or 
+ * OUT_OF_MEMORY or UNCATCHABLE_ERROR_OCCURRED.
+ */
+public class SeriesIndexer extends Thread 
+{
+	
+	// OB, OW and UN values from this length on are not read into the index
+	private static final int BULK_DATA_THRESHOLD = 4096;
+	
+	private final Handler mHandler;
+	private final File source;
+	private final int threadCount;
+	private volatile ExecutorService executor;
+	private volatile boolean cancelled = false;
+	
+	
+	public SeriesIndexer(Handler handler, File source)
+	{
+		this(handler, source, Runtime.getRuntime().availableProcessors());
+	}
+	
+	
+	public SeriesIndexer(Handler handler, File source, int threadCount)
+	{
+		if (handler == null)
+			throw new NullPointerException("The handler is null while calling the indexing thread.");
+		if (source == null)
+			throw new NullPointerException("The source is null while calling the indexing thread.");
+		
+		mHandler = handler;
+		this.source = source;
+		this.threadCount = Math.max(1, threadCount);
+	}
+	
+	
+	public File getSource()
+	{
+		return source;
+	}
+	
+	
+	/*
+	 * stops the indexing, no FINISHED message is sent afterwards
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+		ExecutorService tmp = executor;
+		if(tmp != null)tmp.shutdownNow();
+		interrupt();
+	}
+	
+	
+	public void run()
+	{
+		try
+		{
+			DicomIndex index = buildIndex();
+			if(cancelled)return;
+			Message message = mHandler.obtainMessage();
+			message.what = MinimalDicomViewer.FINISHED;
+			message.obj = index;
+			mHandler.sendMessage(message);
+		}
+		catch(InterruptedException ex)
+		{
+			// cancelled
+		}
+		catch(OutOfMemoryError ex)
+		{
+			mHandler.sendEmptyMessage(MinimalDicomViewer.OUT_OF_MEMORY);
+		}
+		catch(Exception ex)
+		{
+			Message message = mHandler.obtainMessage();
+			message.what = MinimalDicomViewer.UNCATCHABLE_ERROR_OCCURRED;
+			message.obj = ex.getMessage();
+			mHandler.sendMessage(message);
+		}
+	}
+	
+	
+	private DicomIndex buildIndex() throws IOException, InterruptedException
+	{
+		final List<File> files = listFiles(source);
+		final DicomIndex index = new DicomIndex(source);
+		executor = Executors.newFixedThreadPool(Math.min(threadCount, Math.max(1, files.size())));
+		try
+		{
+			CompletionService<DicomIndex.Instance> completionService = 
+				new ExecutorCompletionService<DicomIndex.Instance>(executor);
+			for(final File file : files)
+			{
+				completionService.submit(new Callable<DicomIndex.Instance>() 
+				{
+					public DicomIndex.Instance call() throws Exception 
+					{
+						return readInstance(file);
+					}
+				});
+			}
+			for(int i = 0; i < files.size(); i++)
+			{
+				try
+				{
+					DicomIndex.Instance instance = completionService.take().get();
+					if(instance != null)index.add(instance);
+				}
+				catch(ExecutionException ex)
+				{
+					// not a readable DICOM file, skip it
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		return index;
+	}
+	
+	
+	/*
+	 * parses the header up to the pixel data and records the transfer syntax 
+	 * and the position of the pixel data value in the file, so a FrameReader 
+	 * can be opened without parsing the header again
+	 */
+	static DicomIndex.Instance readInstance(File file) throws IOException
+	{
+		DicomInputStream dis = new DicomInputStream(file);
+		try
+		{
+			// the index holds the headers of all files, large values in 
+			// front of the pixel data (private data like the Siemens CSA 
+			// headers, icon images, LUTs) are referenced by their offset in 
+			// the file and only read when they are accessed
+			dis.setBulkDataThreshold(BULK_DATA_THRESHOLD);
+			DicomObject header = DicomHelper.readHeader(dis, Tag.PixelData);
+			long pixelDataOffset = -1;
+			int pixelDataLength = -1;
+			if(dis.tag() == Tag.PixelData && dis.level() == 0)
+			{
+				pixelDataOffset = dis.getStreamPosition();
+				pixelDataLength = dis.valueLength();
+			}
+			return new DicomIndex.Instance(file, header, dis.getTransferSyntax().uid(), pixelDataOffset, pixelDataLength);
+		}
+		finally
+		{
+			CloseUtils.safeClose(dis);
+		}
+	}
+	
+	
+	/*
+	 * the DICOM files of a directory or the image files referenced by a DICOMDIR
+	 */
+	private static List<File> listFiles(File source) throws IOException
+	{
+		List<File> result = new ArrayList<File>();
+		if(source.isDirectory())
+		{
+			File dicomdir = new File(source, "DICOMDIR");
+			if(dicomdir.isFile())
+			{
+				return listFiles(dicomdir);
+			}
+			FileFilter filter = new DicomFileFilter();
+			File[] files = source.listFiles(filter);
+			if(files != null)
+			{
+				for(File file : files)result.add(file);
+			}
+		}
+		else if(source.getName().equalsIgnoreCase("DICOMDIR"))
+		{
+			DicomDirReader reader = new DicomDirReader(source);
+			try
+			{
+				addReferencedFiles(reader, reader.findFirstRootRecord(), result);
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		else
+		{
+			result.add(source);
+		}
+		return result;
+	}
+	
+	
+	private static void addReferencedFiles(DicomDirReader reader, DicomObject record, List<File> result) throws IOException
+	{
+		for(; record != null; record = reader.findNextSiblingRecord(record))
+		{
+			if(record.containsValue(Tag.ReferencedFileID))
+			{
+				result.add(reader.toReferencedFile(record));
+			}
+			addReferencedFiles(reader, reader.findFirstChildRecord(record), result);
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <SliceSorter.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+
+import android.os.Handler;
+import android.os.Message;
+
+/*
+ * Orders the files of a folder anatomically: by series, then by the position 
+ * of the slice along the normal of its image plane, then by instance number 
+ * and acquisition time. The headers of a DicomIndex are used if given, 
+ * otherwise only the header up to ImageOrientationPatient is parsed; the 
+ * extracted values of the most recently sorted files are cached.
+ * As thread, the handler receives FINISHED with the sorter as obj, so that 
+ * the result can be matched with the files it was started for.
+ */
+public class SliceSorter extends Thread 
+{
+	
+	// all needed attributes are in front of (0020,0038)
+	private static final int STOP_TAG = Tag.ImageOrientationPatient + 1;
+	
+	// files whose values are kept, a few directories' worth
+	private static final int MAX_CACHED_FILES = 4096;
+	
+	private static final Map<String, SliceInfo> cache = Collections.synchronizedMap(new SliceInfoCache());
+	
+	private final Handler mHandler;
+	private final File[] files;
+	private final DicomIndex index;
+	private volatile File[] sortedFiles = null;
+	
+	
+	public SliceSorter(Handler handler, File[] files)
+	{
+		this(handler, files, null);
+	}
+	
+	
+	/*
+	 * index may be null, files missing in it are parsed
+	 */
+	public SliceSorter(Handler handler, File[] files, DicomIndex index)
+	{
+		if (handler == null)
+			throw new NullPointerException("The handler is null while calling the sorting thread.");
+		if (files == null)
+			throw new NullPointerException("The files array is null while calling the sorting thread.");
+		
+		mHandler = handler;
+		this.files = files;
+		this.index = index;
+	}
+	
+	
+	public void run()
+	{
+		try
+		{
+			sortedFiles = sort(files, index, Runtime.getRuntime().availableProcessors());
+			if(isInterrupted())return;
+			Message message = mHandler.obtainMessage();
+			message.what = MinimalDicomViewer.FINISHED;
+			message.obj = this;
+			mHandler.sendMessage(message);
+		}
+		catch(InterruptedException ex)
+		{
+			// cancelled, keep the current order
+		}
+		catch(RuntimeException ex)
+		{
+			// keep the current order
+			ex.printStackTrace();
+		}
+	}
+	
+	
+	/*
+	 * stops the sorting, no FINISHED message is sent afterwards
+	 */
+	public void cancel()
+	{
+		interrupt();
+	}
+	
+	
+	/*
+	 * the files the sorter was started with
+	 */
+	public File[] getFiles()
+	{
+		return files;
+	}
+	
+	
+	/*
+	 * the sorted copy of the files, null until the sorting is finished
+	 */
+	public File[] getSortedFiles()
+	{
+		return sortedFiles;
+	}
+	
+	
+	/*
+	 * returns a sorted copy of the files array, the headers are read by 
+	 * threadCount threads
+	 */
+	public static File[] sort(File[] files, int threadCount) throws InterruptedException
+	{
+		return sort(files, null, threadCount);
+	}
+	
+	
+	/*
+	 * as above, the headers of files contained in index are taken from it
+	 */
+	public static File[] sort(File[] files, final DicomIndex index, int threadCount) throws InterruptedException
+	{
+		final SliceInfo[] infos = new SliceInfo[files.length];
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, files.length)));
+		try
+		{
+			List<Callable<SliceInfo>> tasks = new ArrayList<Callable<SliceInfo>>(files.length);
+			for(final File file : files)
+			{
+				tasks.add(new Callable<SliceInfo>() 
+				{
+					public SliceInfo call() 
+					{
+						return getSliceInfo(file, index);
+					}
+				});
+			}
+			List<Future<SliceInfo>> results = executor.invokeAll(tasks);
+			for(int i = 0; i < infos.length; i++)
+			{
+				try
+				{
+					infos[i] = results.get(i).get();
+				}
+				catch(ExecutionException ex)
+				{
+					infos[i] = new SliceInfo(files[i], null);
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		Arrays.sort(infos, ANATOMICAL_ORDER);
+		File[] sorted = new File[infos.length];
+		for(int i = 0; i < infos.length; i++)sorted[i] = infos[i].file;
+		return sorted;
+	}
+	
+	
+	static SliceInfo getSliceInfo(File file, DicomIndex index)
+	{
+		String key = file.getAbsolutePath();
+		long lastModified = file.lastModified();
+		SliceInfo info = cache.get(key);
+		if(info != null && info.lastModified == lastModified)return info;
+		DicomIndex.Instance instance = index == null ? null : index.getInstance(file);
+		DicomObject header = instance == null ? null : instance.getHeader();
+		if(header == null)
+		{
+			try
+			{
+				header = DicomHelper.readHeader(key, STOP_TAG);
+			}
+			catch(Exception ex)
+			{
+				// not readable, sorted behind the readable files by name
+			}
+		}
+		info = new SliceInfo(file, header);
+		cache.put(key, info);
+		return info;
+	}
+	
+	
+	/*
+	 * least recently used slice values are dropped beyond MAX_CACHED_FILES
+	 */
+	private static final class SliceInfoCache extends LinkedHashMap<String, SliceInfo>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		SliceInfoCache()
+		{
+			super(256, 0.75f, true);
+		}
+		
+		protected boolean removeEldestEntry(Map.Entry<String, SliceInfo> eldest)
+		{
+			return size() > MAX_CACHED_FILES;
+		}
+	}
+	
+	
+	private static final Comparator<SliceInfo> ANATOMICAL_ORDER = new Comparator<SliceInfo>()
+	{
+		public int compare(SliceInfo s1, SliceInfo s2) 
+		{
+			if(s1.valid != s2.valid)return s1.valid ? -1 : 1;
+			if(s1.seriesNumber != s2.seriesNumber)return s1.seriesNumber < s2.seriesNumber ? -1 : 1;
+			int result = s1.seriesUID.compareTo(s2.seriesUID);
+			if(result != 0)return result;
+			// slices without location (localizers, secondary captures) behind 
+			// the located ones, so that the order stays transitive
+			boolean located1 = !Double.isNaN(s1.location);
+			boolean located2 = !Double.isNaN(s2.location);
+			if(located1 != located2)return located1 ? -1 : 1;
+			if(located1)
+			{
+				result = Double.compare(s1.location, s2.location);
+				if(result != 0)return result;
+			}
+			if(s1.instanceNumber != s2.instanceNumber)return s1.instanceNumber < s2.instanceNumber ? -1 : 1;
+			if(s1.acquisitionTime != s2.acquisitionTime)return s1.acquisitionTime < s2.acquisitionTime ? -1 : 1;
+			return s1.file.getName().compareTo(s2.file.getName());
+		}
+	};
+	
+	
+	/*
+	 * the few header values needed for sorting, the header itself is not kept
+	 */
+	static final class SliceInfo
+	{
+		final File file;
+		final long lastModified;
+		final boolean valid;
+		final String seriesUID;
+		final int seriesNumber;
+		final int instanceNumber;
+		final long acquisitionTime;
+		/*
+		 * position of the slice along the normal of the image plane, 
+		 * NaN if position or orientation are missing
+		 */
+		final double location;
+		
+		SliceInfo(File file, DicomObject header)
+		{
+			this.file = file;
+			this.lastModified = file.lastModified();
+			this.valid = header != null;
+			if(header == null)
+			{
+				seriesUID = "";
+				seriesNumber = 0;
+				instanceNumber = 0;
+				acquisitionTime = 0;
+				location = Double.NaN;
+				return;
+			}
+			seriesUID = header.getString(Tag.SeriesInstanceUID, "");
+			seriesNumber = header.getInt(Tag.SeriesNumber, 0);
+			instanceNumber = header.getInt(Tag.InstanceNumber, 0);
+			Date time = header.getDate(Tag.AcquisitionTime);
+			acquisitionTime = time == null ? 0 : time.getTime();
+			location = location(header.getDoubles(Tag.ImagePositionPatient), 
+					header.getDoubles(Tag.ImageOrientationPatient));
+		}
+		
+		private static double location(double[] position, double[] orientation)
+		{
+			if(position == null || position.length != 3 || orientation == null || orientation.length != 6)
+				return Double.NaN;
+			// normal = row direction x column direction
+			double nx = orientation[1] * orientation[5] - orientation[2] * orientation[4];
+			double ny = orientation[2] * orientation[3] - orientation[0] * orientation[5];
+			double nz = orientation[0] * orientation[4] - orientation[1] * orientation[3];
+			return position[0] * nx + position[1] * ny + position[2] * nz;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <TileRenderer.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/*
+ * Renders an image that is too large for a single bitmap. A preview of the 
+ * whole image is rendered at a reduced resolution that fits a part of the 
+ * memory budget; when the user zooms in, the visible part is drawn on top 
+ * of the preview from tiles of TILE_SIZE x TILE_SIZE pixels, rendered at 
+ * the power of two subsample matching the current scale. Tiles are kept in 
+ * a least recently used cache bounded by the rest of the memory budget, 
+ * so the heap needed does not depend on the image size.
+ */
+public class TileRenderer {
+
+	public static final int TILE_SIZE = 256;
+	
+	// default budget for preview and tiles: a quarter of the heap
+	private static int defaultMemoryBudget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4);
+	
+	// heap limit up to which a device counts as memory constrained
+	private static final long SMALL_HEAP = 32L << 20;
+	
+	// RGB_565 keeps the gray levels with half the memory of ARGB_8888, at 
+	// 5 and 6 bits per channel; it is the default on memory constrained 
+	// devices
+	private static Bitmap.Config defaultConfig = Runtime.getRuntime().maxMemory() <= SMALL_HEAP 
+			? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+	
+	// tile pixels rendered before they are copied into the tile bitmap
+	private static final ThreadLocal<int[]> tileBuffer = new ThreadLocal<int[]>() 
+	{
+		protected int[] initialValue()
+		{
+			return new int[TILE_SIZE * TILE_SIZE];
+		}
+	};
+	
+	private final ImageGray16Bit image;
+	private final Bitmap.Config config;
+	private final int bytesPerPixel;
+	private final int tileBytesMax;
+	private final int previewSubsample;
+	private final long tileBudget;
+	
+	private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final float[] values = new float[9];
+	private final RectF destination = new RectF();
+	private Bitmap preview = null;
+	
+	private final LinkedHashMap<Long, Bitmap> tiles = new LinkedHashMap<Long, Bitmap>(32, 0.75f, true);
+	private long tileBytes = 0;
+	
+	
+	public TileRenderer(ImageGray16Bit image)
+	{
+		this(image, defaultMemoryBudget);
+	}
+	
+	
+	/*
+	 * memoryBudget is the number of bytes the preview and the tile cache 
+	 * together may use; a quarter of it is spent on the preview
+	 */
+	public TileRenderer(ImageGray16Bit image, int memoryBudget)
+	{
+		this.image = image;
+		this.config = defaultConfig;
+		this.bytesPerPixel = BitmapPool.getBytesPerPixel(config);
+		this.tileBytesMax = TILE_SIZE * TILE_SIZE * bytesPerPixel;
+		long previewBytes = getPreviewBytes(memoryBudget, bytesPerPixel);
+		this.previewSubsample = image.getSubsampleFor(previewBytes / bytesPerPixel);
+		this.tileBudget = Math.max(4L * tileBytesMax, memoryBudget - previewBytes);
+	}
+	
+	
+	private static long getPreviewBytes(int memoryBudget, int bytesPerPixel)
+	{
+		return Math.max(TILE_SIZE * TILE_SIZE * bytesPerPixel, memoryBudget / 4);
+	}
+	
+	
+	/*
+	 * the preview subsample a renderer with the default budget uses for an 
+	 * image of the given size, known from the header before the pixel data 
+	 * is read
+	 */
+	public static int getPreviewSubsample(int width, int height)
+	{
+		int bytesPerPixel = BitmapPool.getBytesPerPixel(defaultConfig);
+		return ImageGray16Bit.getSubsampleFor(width, height, getPreviewBytes(defaultMemoryBudget, bytesPerPixel) / bytesPerPixel);
+	}
+	
+	
+	/*
+	 * ARGB_8888 or RGB_565; ALPHA_8 is not supported, as views and the JPEG 
+	 * export would draw it as a mask instead of gray levels
+	 */
+	public static void setDefaultConfig(Bitmap.Config config)
+	{
+		if(config != Bitmap.Config.ARGB_8888 && config != Bitmap.Config.RGB_565)
+			throw new IllegalArgumentException("Unsupported bitmap configuration " + config);
+		defaultConfig = config;
+	}
+	
+	
+	public static Bitmap.Config getDefaultConfig()
+	{
+		return defaultConfig;
+	}
+	
+	
+	public static void setDefaultMemoryBudget(int bytes)
+	{
+		defaultMemoryBudget = bytes;
+	}
+	
+	
+	public static int getDefaultMemoryBudget()
+	{
+		return defaultMemoryBudget;
+	}
+	
+	
+	/*
+	 * number of image pixels per pixel of the preview in each direction
+	 */
+	public int getPreviewSubsample()
+	{
+		return previewSubsample;
+	}
+	
+	
+	/*
+	 * renders the preview, null if the rendering thread was interrupted
+	 */
+	public Bitmap createPreview()
+	{
+		preview = image.createBitmap(previewSubsample, config);
+		return preview;
+	}
+	
+	
+	public Bitmap getPreview()
+	{
+		return preview;
+	}
+	
+	
+	/*
+	 * draws the tiles covering the visible part of the image if the preview 
+	 * is too coarse for the current scale; previewMatrix maps preview 
+	 * coordinates to view coordinates and may only scale and translate
+	 */
+	public void drawVisibleTiles(Canvas canvas, Matrix previewMatrix, int viewWidth, int viewHeight)
+	{
+		if(previewSubsample == 1 || previewMatrix == null)return;
+		previewMatrix.getValues(values);
+		// view pixels per image pixel
+		final float scale = values[Matrix.MSCALE_X] / previewSubsample;
+		if(scale <= 0f)return;
+		final float dx = values[Matrix.MTRANS_X];
+		final float dy = values[Matrix.MTRANS_Y];
+		
+		// largest subsample that still gives at least one tile pixel per view pixel
+		int subsample = 1;
+		while(subsample * 2 * scale <= 1f)subsample <<= 1;
+		
+		final int left = Math.max(0, (int) Math.floor(-dx / scale));
+		final int top = Math.max(0, (int) Math.floor(-dy / scale));
+		final int right = Math.min(image.getWidth(), (int) Math.ceil((viewWidth - dx) / scale));
+		final int bottom = Math.min(image.getHeight(), (int) Math.ceil((viewHeight - dy) / scale));
+		if(left >= right || top >= bottom)return;
+		
+		// coarser tiles if the visible ones would not fit into the cache
+		int span, firstColumn, firstRow, lastColumn, lastRow;
+		while(true)
+		{
+			span = TILE_SIZE * subsample;
+			firstColumn = left / span;
+			firstRow = top / span;
+			lastColumn = (right - 1) / span;
+			lastRow = (bottom - 1) / span;
+			long visibleBytes = (long) (lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) * tileBytesMax;
+			if(visibleBytes <= tileBudget)break;
+			subsample <<= 1;
+		}
+		if(subsample >= previewSubsample)return;
+		
+		for(int row = firstRow; row <= lastRow; row++)
+		{
+			for(int column = firstColumn; column <= lastColumn; column++)
+			{
+				Bitmap tile = getTile(subsample, column, row);
+				float x = column * span;
+				float y = row * span;
+				destination.set(dx + x * scale, dy + y * scale, 
+						dx + (x + tile.getWidth() * subsample) * scale, 
+						dy + (y + tile.getHeight() * subsample) * scale);
+				canvas.drawBitmap(tile, null, destination, paint);
+			}
+		}
+	}
+	
+	
+	private Bitmap getTile(int subsample, int column, int row)
+	{
+		Long key = Long.valueOf(((long) subsample << 40) | ((long) row << 20) | column);
+		Bitmap tile = tiles.get(key);
+		if(tile != null)return tile;
+		
+		final int span = TILE_SIZE * subsample;
+		final int left = column * span;
+		final int top = row * span;
+		final int columns = Math.min(TILE_SIZE, (image.getWidth() - left + subsample - 1) / subsample);
+		final int rows = Math.min(TILE_SIZE, (image.getHeight() - top + subsample - 1) / subsample);
+		final int[] buffer = tileBuffer.get();
+		image.render(left, top, columns, rows, subsample, buffer);
+		tile = BitmapPool.getSharedPool().acquire(columns, rows, config);
+		tile.setPixels(buffer, 0, columns, 0, 0, columns, rows);
+		
+		tiles.put(key, tile);
+		tileBytes += columns * rows * bytesPerPixel;
+		// the least recently used tiles were not drawn in the current frame, 
+		// so they can be rewritten for other tiles
+		Iterator<Map.Entry<Long, Bitmap>> iterator = tiles.entrySet().iterator();
+		while(tileBytes > tileBudget && iterator.hasNext())
+		{
+			Bitmap eldest = iterator.next().getValue();
+			if(eldest == tile)break;
+			tileBytes -= eldest.getWidth() * eldest.getHeight() * bytesPerPixel;
+			iterator.remove();
+			BitmapPool.getSharedPool().release(eldest);
+		}
+		return tile;
+	}
+	
+	
+	/*
+	 * drops all tiles, e.g. after the window of the image has changed
+	 */
+	public void clear()
+	{
+		BitmapPool pool = BitmapPool.getSharedPool();
+		for(Bitmap tile : tiles.values())
+		{
+			pool.release(tile);
+		}
+		tiles.clear();
+		tileBytes = 0;
+	}
+	
+	
+	/*
+	 * hands preview and tiles back to the BitmapPool once the renderer is 
+	 * no longer shown
+	 */
+	public void release()
+	{
+		clear();
+		BitmapPool.getSharedPool().release(preview);
+		preview = null;
+	}
+}
@@ -0,0 +1,438 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <WindowLevelEngine.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+import java.nio.ShortBuffer;
+
+/*
+ * Maps raw 16 bit stored values to ARGB gray pixels with a single lookup 
+ * table of 65536 entries. The table combines masking and sign extension 
+ * of the stored value, the modality rescale or Modality LUT, the window or 
+ * VOI LUT, MONOCHROME1 or user inversion and brightness/contrast, so 
+ * rendering needs one lookup per pixel. 
+ * The table is built in two stages: the window stage (stored value to 
+ * gray level) is only recomputed when bits stored, pixel representation, 
+ * rescale or window change; a change of brightness, contrast or inversion 
+ * only recomputes the 256 entry display stage and recombines both. 
+ * The combined table is built into a spare array and then swapped in, so 
+ * a rendering in progress keeps reading the complete previous table.
+ */
+public class WindowLevelEngine {
+
+	private static final int TABLE_SIZE = 1 << 16;
+	
+	// raw stored value -> ARGB, and the previous table reused for the next 
+	// build if no rendering reads it anymore
+	private int[] table = new int[TABLE_SIZE];
+	private int[] spareTable = new int[TABLE_SIZE];
+	private int tableReaders = 0;
+	private int spareTableReaders = 0;
+	
+	// window stage: raw stored value -> gray level 0..255
+	private final byte[] grayLevels = new byte[TABLE_SIZE];
+	
+	// display stage: gray level -> ARGB
+	private final int[] displayLevels = new int[256];
+	
+	private int bitsStored = 16;
+	private int pixelRepresentation = 0;
+	private double rescaleSlope = 1.;
+	private double rescaleIntercept = 0.;
+	private double windowCenter = 128.;
+	private double windowWidth = 256.;
+	private boolean sigmoid = false;
+	
+	// Modality LUT, replaces the rescale if not null
+	private int[] modalityLut = null;
+	private int modalityLutFirst = 0;
+	
+	// VOI LUT, replaces the window if not null
+	private int[] voiLut = null;
+	private int voiLutFirst = 0;
+	private int voiLutMax = 255;
+	
+	private boolean monochrome1 = false;
+	private boolean inverted = false;
+	private LUTable lut = null;
+	
+	private boolean windowChanged = true;
+	private boolean displayChanged = true;
+	
+	
+	public synchronized void setBitsStored(int bitsStored)
+	{
+		bitsStored = bitsStored < 1 || bitsStored > 16 ? 16 : bitsStored;
+		if(this.bitsStored == bitsStored)return;
+		this.bitsStored = bitsStored;
+		windowChanged = true;
+	}
+	
+	public int getBitsStored()
+	{
+		return bitsStored;
+	}
+	
+	/*
+	 * 0 = unsigned, 1 = two's complement
+	 */
+	public synchronized void setPixelRepresentation(int pixelRepresentation)
+	{
+		if(this.pixelRepresentation == pixelRepresentation)return;
+		this.pixelRepresentation = pixelRepresentation;
+		windowChanged = true;
+	}
+	
+	public int getPixelRepresentation()
+	{
+		return pixelRepresentation;
+	}
+	
+	public synchronized void setRescale(double slope, double intercept)
+	{
+		if(rescaleSlope == slope && rescaleIntercept == intercept)return;
+		rescaleSlope = slope;
+		rescaleIntercept = intercept;
+		windowChanged = true;
+	}
+	
+	/*
+	 * Modality LUT mapping the stored values from firstMapped on to 
+	 * modality values, null to use the rescale again
+	 */
+	public synchronized void setModalityLut(int[] data, int firstMapped)
+	{
+		modalityLut = data == null || data.length == 0 ? null : data;
+		modalityLutFirst = firstMapped;
+		windowChanged = true;
+	}
+	
+	public boolean hasModalityLut()
+	{
+		return modalityLut != null;
+	}
+	
+	public double getRescaleSlope()
+	{
+		return rescaleSlope;
+	}
+	
+	public double getRescaleIntercept()
+	{
+		return rescaleIntercept;
+	}
+	
+	/*
+	 * window center and width in modality units (e.g. Hounsfield units), 
+	 * replaces a VOI LUT
+	 */
+	public synchronized void setWindow(double center, double width)
+	{
+		width = Math.max(1., width);
+		if(voiLut == null && windowCenter == center && windowWidth == width)return;
+		windowCenter = center;
+		windowWidth = width;
+		voiLut = null;
+		windowChanged = true;
+	}
+	
+	/*
+	 * VOI LUT Function of the window, LINEAR or SIGMOID
+	 */
+	public synchronized void setVoiLutFunction(String function)
+	{
+		boolean sigmoid = "SIGMOID".equalsIgnoreCase(function == null ? null : function.trim());
+		if(this.sigmoid == sigmoid)return;
+		this.sigmoid = sigmoid;
+		windowChanged = true;
+	}
+	
+	/*
+	 * VOI LUT mapping the modality values from firstMapped on to output 
+	 * values of bitsPerEntry bits, replaces the window
+	 */
+	public synchronized void setVoiLut(int[] data, int firstMapped, int bitsPerEntry)
+	{
+		if(data == null || data.length == 0)return;
+		voiLut = data;
+		voiLutFirst = firstMapped;
+		voiLutMax = (1 << (bitsPerEntry < 1 || bitsPerEntry > 16 ? 16 : bitsPerEntry)) - 1;
+		windowChanged = true;
+	}
+	
+	public boolean hasVoiLut()
+	{
+		return voiLut != null;
+	}
+	
+	public double getWindowCenter()
+	{
+		return windowCenter;
+	}
+	
+	public double getWindowWidth()
+	{
+		return windowWidth;
+	}
+	
+	public synchronized void setMonochrome1(boolean monochrome1)
+	{
+		if(this.monochrome1 == monochrome1)return;
+		this.monochrome1 = monochrome1;
+		displayChanged = true;
+	}
+	
+	public boolean isMonochrome1()
+	{
+		return monochrome1;
+	}
+	
+	public synchronized void setInverted(boolean inverted)
+	{
+		if(this.inverted == inverted)return;
+		this.inverted = inverted;
+		displayChanged = true;
+	}
+	
+	public boolean isInverted()
+	{
+		return inverted;
+	}
+	
+	public synchronized void setBrightnessAndContrast(int brightness, int contrast)
+	{
+		LUTable lut = new LUTable();
+		lut.setContrast(Math.pow(contrast/127., 2));
+		lut.setBrightness(256 - brightness);
+		this.lut = lut;
+		displayChanged = true;
+	}
+	
+	
+	/*
+	 * takes over window or VOI LUT, inversion and brightness/contrast of 
+	 * another engine, e.g. for the next frame of a cine loop
+	 */
+	public void setDisplaySettings(WindowLevelEngine other)
+	{
+		double center, width;
+		int[] voiLut;
+		int voiLutFirst, voiLutMax;
+		boolean sigmoid, inverted;
+		LUTable lut;
+		synchronized(other)
+		{
+			center = other.windowCenter;
+			width = other.windowWidth;
+			voiLut = other.voiLut;
+			voiLutFirst = other.voiLutFirst;
+			voiLutMax = other.voiLutMax;
+			sigmoid = other.sigmoid;
+			inverted = other.inverted;
+			lut = other.lut;
+		}
+		synchronized(this)
+		{
+			this.windowCenter = center;
+			this.windowWidth = width;
+			this.voiLut = voiLut;
+			this.voiLutFirst = voiLutFirst;
+			this.voiLutMax = voiLutMax;
+			this.sigmoid = sigmoid;
+			this.inverted = inverted;
+			this.lut = lut;
+			windowChanged = true;
+			displayChanged = true;
+		}
+	}
+	
+	
+	/*
+	 * stored value of a raw 16 bit value, sign extended or masked according 
+	 * to bits stored and pixel representation
+	 */
+	public int toStoredValue(int raw)
+	{
+		int shift = 32 - bitsStored;
+		return pixelRepresentation == 0 ? (raw << shift) >>> shift : (raw << shift) >> shift;
+	}
+	
+	
+	public double toModalityValue(int storedValue)
+	{
+		final int[] modalityLut = this.modalityLut;
+		if(modalityLut != null)
+		{
+			return modalityLut[clamp(storedValue - modalityLutFirst, modalityLut.length - 1)];
+		}
+		return storedValue * rescaleSlope + rescaleIntercept;
+	}
+	
+	
+	private static int clamp(int index, int max)
+	{
+		return index < 0 ? 0 : (index > max ? max : index);
+	}
+	
+	
+	/*
+	 * returns the lookup table indexed by the raw 16 bit value (raw & 0xffff),
+	 * recomputing the stages whose parameters have changed; the table is 
+	 * not modified until it is given back by releaseTable
+	 */
+	private synchronized int[] acquireTable()
+	{
+		if(windowChanged)
+		{
+			computeGrayLevels();
+		}
+		if(displayChanged)
+		{
+			computeDisplayLevels();
+		}
+		if(windowChanged || displayChanged)
+		{
+			final byte[] grayLevels = this.grayLevels;
+			final int[] displayLevels = this.displayLevels;
+			final int[] newTable = spareTableReaders == 0 ? spareTable : new int[TABLE_SIZE];
+			for(int i = 0; i < TABLE_SIZE; i++)
+			{
+				newTable[i] = displayLevels[grayLevels[i] & 0xff];
+			}
+			spareTable = table;
+			spareTableReaders = tableReaders;
+			table = newTable;
+			tableReaders = 0;
+			windowChanged = false;
+			displayChanged = false;
+		}
+		tableReaders++;
+		return table;
+	}
+	
+	
+	private synchronized void releaseTable(int[] readTable)
+	{
+		if(readTable == table)tableReaders--;
+		else if(readTable == spareTable)spareTableReaders--;
+	}
+	
+	
+	/*
+	 * renders count pixels starting at index into out, starting at offset
+	 */
+	public void apply(ShortBuffer pixels, int index, int count, int[] out, int offset)
+	{
+		final int[] table = acquireTable();
+		try
+		{
+			for(int end = index + count; index < end; index++, offset++)
+			{
+				out[offset] = table[pixels.get(index) & 0xffff];
+			}
+		}
+		finally
+		{
+			releaseTable(table);
+		}
+	}
+	
+	
+	/*
+	 * renders a region of columns x rows output pixels of an image with the 
+	 * given width into out; output pixel (x, y) shows the stored pixel 
+	 * (left + x * subsample, top + y * subsample)
+	 */
+	public void apply(ShortBuffer pixels, int width, int left, int top, int columns, int rows, int subsample, int[] out)
+	{
+		apply(pixels, width, left, top, columns, rows, subsample, out, 0);
+	}
+	
+	
+	/*
+	 * like apply above, but writes the output pixels into out starting at 
+	 * offset
+	 */
+	public void apply(ShortBuffer pixels, int width, int left, int top, int columns, int rows, int subsample, int[] out, int offset)
+	{
+		final int[] table = acquireTable();
+		try
+		{
+			for(int y = 0, j = offset; y < rows; y++)
+			{
+				int i = (top + y * subsample) * width + left;
+				for(int x = 0; x < columns; x++, j++, i += subsample)
+				{
+					out[j] = table[pixels.get(i) & 0xffff];
+				}
+			}
+		}
+		finally
+		{
+			releaseTable(table);
+		}
+	}
+	
+	
+	/*
+	 * VOI LUT or the linear or sigmoid VOI function of PS 3.3 C.11.2.1.2 
+	 * applied to the modality value
+	 */
+	private void computeGrayLevels()
+	{
+		final double lower = windowCenter - 0.5 - (windowWidth - 1.) / 2.;
+		final double upper = windowCenter - 0.5 + (windowWidth - 1.) / 2.;
+		final int[] voiLut = this.voiLut;
+		for(int raw = 0; raw < TABLE_SIZE; raw++)
+		{
+			double value = toModalityValue(toStoredValue(raw));
+			int gray;
+			if(voiLut != null)
+			{
+				int index = clamp((int) Math.floor(value) - voiLutFirst, voiLut.length - 1);
+				gray = (int) ((long) voiLut[index] * 255 / voiLutMax);
+			}
+			else if(sigmoid)gray = (int) (255. / (1. + Math.exp(-4. * (value - windowCenter) / windowWidth)));
+			else if(value <= lower)gray = 0;
+			else if(value > upper)gray = 255;
+			else gray = (int) (((value - (windowCenter - 0.5)) / (windowWidth - 1.) + 0.5) * 255.);
+			grayLevels[raw] = (byte) (gray > 255 ? 255 : (gray < 0 ? 0 : gray));
+		}
+	}
+	
+	
+	private void computeDisplayLevels()
+	{
+		final boolean invert = monochrome1 ^ inverted;
+		for(int level = 0; level < 256; level++)
+		{
+			int gray = invert ? 255 - level : level;
+			if(lut != null)gray = lut.getValue(gray);
+			displayLevels[level] = (0xFF << 24) | // alpha
+			(gray << 16) | // red
+			(gray << 8) | // green
+			gray; // blue
+		}
+	}
+}
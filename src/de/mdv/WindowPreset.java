@@ -0,0 +1,110 @@
+/*
+ * copyright (C) 2011 Robert Schmidt
+ *
+ * This file <WindowPreset.java> is part of Minimal Dicom Viewer.
+ *
+ * Minimal Dicom Viewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minimal Dicom Viewer is distributed as Open Source Software ( OSS )
+ * and comes WITHOUT ANY WARRANTY and even with no IMPLIED WARRANTIES OF MERCHANTABILITY,
+ * OF SATISFACTORY QUALITY, AND OF FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License ( GPLv3 ) for more details.
+ *
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minimal Dicom Viewer. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Released date: 13-11-2011
+ *
+ * Version: 1.0
+ * 
+ */
+package de.mdv;
+
+/*
+ * Named window or VOI LUT that can be applied to the WindowLevelEngine of 
+ * an image: the windows and VOI LUTs of the DICOM header, or one of the 
+ * common CT windows in Hounsfield units.
+ */
+public class WindowPreset {
+
+	private final String name;
+	private final double center;
+	private final double width;
+	
+	private final int[] lut;
+	private final int lutFirst;
+	private final int lutBits;
+	
+	
+	public WindowPreset(String name, double center, double width)
+	{
+		this.name = name;
+		this.center = center;
+		this.width = width;
+		this.lut = null;
+		this.lutFirst = 0;
+		this.lutBits = 0;
+	}
+	
+	
+	public WindowPreset(String name, int[] lut, int firstMapped, int bitsPerEntry)
+	{
+		this.name = name;
+		this.center = 0.;
+		this.width = 0.;
+		this.lut = lut;
+		this.lutFirst = firstMapped;
+		this.lutBits = bitsPerEntry;
+	}
+	
+	
+	/*
+	 * the common CT windows, center and width in Hounsfield units
+	 */
+	public static WindowPreset[] getCTPresets(int language)
+	{
+		return new WindowPreset[] {
+			new WindowPreset(Messages.getLabel(Messages.PRESET_BRAIN, language), 40., 80.),
+			new WindowPreset(Messages.getLabel(Messages.PRESET_SOFT_TISSUE, language), 40., 400.),
+			new WindowPreset(Messages.getLabel(Messages.PRESET_LUNG, language), -600., 1500.),
+			new WindowPreset(Messages.getLabel(Messages.PRESET_BONE, language), 400., 1800.)
+		};
+	}
+	
+	
+	public void applyTo(WindowLevelEngine engine)
+	{
+		if(lut != null)engine.setVoiLut(lut, lutFirst, lutBits);
+		else engine.setWindow(center, width);
+	}
+	
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	public double getCenter()
+	{
+		return center;
+	}
+	
+	public double getWidth()
+	{
+		return width;
+	}
+	
+	public boolean isVoiLut()
+	{
+		return lut != null;
+	}
+	
+	public String toString()
+	{
+		return name;
+	}
+}
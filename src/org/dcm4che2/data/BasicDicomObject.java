@@ -43,6 +43,7 @@ import java.util.Date;
 import java.util.Iterator;
 
 import org.dcm4che2.util.IntHashtable;
+import org.dcm4che2.util.IntTable;
 import org.dcm4che2.util.TagUtils;
 
 public class BasicDicomObject extends AbstractDicomObject {
@@ -53,7 +54,7 @@ public class BasicDicomObject extends AbstractDicomObject {
 
     private static final int INIT_SEQUENCE_CAPACITY = 10;
 
-    private transient final IntHashtable<DicomElement> table;
+    private transient final IntTable<DicomElement> table;
 
     private transient DicomObject defaults;
 
@@ -84,8 +85,13 @@ public class BasicDicomObject extends AbstractDicomObject {
     }
 
     public BasicDicomObject(DicomObject defaults, int capacity) {
+        this(defaults, new IntHashtable<DicomElement>(capacity));
+    }
+
+    protected BasicDicomObject(DicomObject defaults,
+            IntTable<DicomElement> table) {
         this.defaults = defaults;
-        this.table = new IntHashtable<DicomElement>(capacity);
+        this.table = table;
     }
 
     public final DicomObject getDefaults() {
@@ -150,14 +156,12 @@ public class BasicDicomObject extends AbstractDicomObject {
     }
 
     public void shareElements() {
-        synchronized (SimpleDicomElement.shared) {
-            table.accept(new IntHashtable.Visitor() {
-                public boolean visit(int key, Object value) {
-                    table.put(key, ((DicomElement) value).share());
-                    return true;
-                }
-            });
-        }
+        table.accept(new IntHashtable.Visitor() {
+            public boolean visit(int key, Object value) {
+                table.put(key, ((DicomElement) value).share());
+                return true;
+            }
+        });
     }
 
     public Iterator<DicomElement> iterator() {
@@ -401,7 +405,8 @@ public class BasicDicomObject extends AbstractDicomObject {
     public DicomElement putBytes(int tag, VR vr, byte[] val, boolean bigEndian) {
         if (vr == null)
             vr = vrOf(tag);
-        return addInternal(new SimpleDicomElement(tag, vr, bigEndian, val, null));
+        return addInternal(SimpleDicomElement.valueOf(tag, vr, bigEndian, val,
+                null));
     }
 
     public DicomElement putNestedDicomObject(int tag, DicomObject item) {
@@ -414,64 +419,64 @@ public class BasicDicomObject extends AbstractDicomObject {
         final boolean be = bigEndian();
         if (vr == null)
             vr = vrOf(tag);
-        return addInternal(new SimpleDicomElement(tag, vr, be, vr.toBytes(val,
-                be), cachePut ? val : null));
+        return addInternal(SimpleDicomElement.valueOf(tag, vr, be,
+                vr.toBytes(val, be), cachePut ? val : null));
     }
 
     public DicomElement putInt(int tag, VR vr, int val) {
         final boolean be = bigEndian();
         if (vr == null)
             vr = vrOf(tag);
-        return addInternal(new SimpleDicomElement(tag, vr, be, vr.toBytes(val,
-                be), cachePut ? Integer.valueOf(val) : null));
+        return addInternal(SimpleDicomElement.valueOf(tag, vr, be,
+                vr.toBytes(val, be), cachePut ? Integer.valueOf(val) : null));
     }
 
     public DicomElement putInts(int tag, VR vr, int[] val) {
         final boolean be = bigEndian();
         if (vr == null)
             vr = vrOf(tag);
-        return addInternal(new SimpleDicomElement(tag, vr, be, vr.toBytes(val,
-                be), cachePut ? val : null));
+        return addInternal(SimpleDicomElement.valueOf(tag, vr, be,
+                vr.toBytes(val, be), cachePut ? val : null));
     }
 
     public DicomElement putFloat(int tag, VR vr, float val) {
         final boolean be = bigEndian();
         if (vr == null)
             vr = vrOf(tag);
-        return addInternal(new SimpleDicomElement(tag, vr, be, vr.toBytes(val,
-                be), cachePut ? new Float(val) : null));
+        return addInternal(SimpleDicomElement.valueOf(tag, vr, be,
+                vr.toBytes(val, be), cachePut ? new Float(val) : null));
     }
 
     public DicomElement putFloats(int tag, VR vr, float[] val) {
         final boolean be = bigEndian();
         if (vr == null)
             vr = vrOf(tag);
-        return addInternal(new SimpleDicomElement(tag, vr, be, vr.toBytes(val,
-                be), cachePut ? val : null));
+        return addInternal(SimpleDicomElement.valueOf(tag, vr, be,
+                vr.toBytes(val, be), cachePut ? val : null));
     }
 
     public DicomElement putDouble(int tag, VR vr, double val) {
         final boolean be = bigEndian();
         if (vr == null)
             vr = vrOf(tag);
-        return addInternal(new SimpleDicomElement(tag, vr, be, vr.toBytes(val,
-                be), cachePut ? new Double(val) : null));
+        return addInternal(SimpleDicomElement.valueOf(tag, vr, be,
+                vr.toBytes(val, be), cachePut ? new Double(val) : null));
     }
 
     public DicomElement putDoubles(int tag, VR vr, double[] val) {
         final boolean be = bigEndian();
         if (vr == null)
             vr = vrOf(tag);
-        return addInternal(new SimpleDicomElement(tag, vr, be, vr.toBytes(val,
-                be), cachePut ? val : null));
+        return addInternal(SimpleDicomElement.valueOf(tag, vr, be,
+                vr.toBytes(val, be), cachePut ? val : null));
     }
 
     public DicomElement putString(int tag, VR vr, String val) {
         final boolean be = bigEndian();
         if (vr == null)
             vr = vrOf(tag);
-        return addInternal(new SimpleDicomElement(tag, vr, be, vr.toBytes(val,
-                be, getSpecificCharacterSet()),
+        return addInternal(SimpleDicomElement.valueOf(tag, vr, be,
+                vr.toBytes(val, be, getSpecificCharacterSet()),
                 cachePut && vr.isSingleValue(val) ? val : null));
     }
 
@@ -479,8 +484,8 @@ public class BasicDicomObject extends AbstractDicomObject {
         final boolean be = bigEndian();
         if (vr == null)
             vr = vrOf(tag);
-        return addInternal(new SimpleDicomElement(tag, vr, be, vr.toBytes(val,
-                be, getSpecificCharacterSet()), 
+        return addInternal(SimpleDicomElement.valueOf(tag, vr, be,
+                vr.toBytes(val, be, getSpecificCharacterSet()), 
                 cachePut && vr.containsSingleValues(val) ? val : null));
     }
 
@@ -0,0 +1,113 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at http://sourceforge.net/projects/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Gunter Zeilinger, Huetteldorferstr. 24/10, 1150 Vienna/Austria/Europe.
+ * Portions created by the Initial Developer are Copyright (C) 2002-2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Gunter Zeilinger <gunterze@gmail.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che2.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.dcm4che2.util.CloseUtils;
+
+/**
+ * Element which only holds a reference to its value in a file - given by
+ * file, offset and length - and loads the value on first access. Used by
+ * {@link org.dcm4che2.io.DicomInputStream} to skip bulk data like Pixel Data,
+ * Overlay Data or Waveform Data, which is not needed by header-only
+ * consumers.
+ */
+public class BulkDataDicomElement extends ByteBufferDicomElement {
+
+    private static final long serialVersionUID = 7105402946264478364L;
+
+    private final File file;
+
+    private final long offset;
+
+    private final int length;
+
+    public BulkDataDicomElement(int tag, VR vr, boolean bigEndian, File file,
+            long offset, int length) {
+        super(tag, vr, bigEndian, null);
+        if (file == null)
+            throw new NullPointerException("file");
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public final File getFile() {
+        return file;
+    }
+
+    public final long getOffset() {
+        return offset;
+    }
+
+    @Override
+    protected int valueLength() {
+        return length;
+    }
+
+    @Override
+    protected ByteBuffer loadBuffer() {
+        byte[] b = new byte[length];
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            raf.seek(offset);
+            raf.readFully(b);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load value of "
+                    + this + " from " + file, e);
+        } finally {
+            CloseUtils.safeClose(raf);
+        }
+        return ByteBuffer.wrap(b);
+    }
+
+    @Override
+    protected void appendValue(StringBuffer sb, int maxValLen) {
+        if (isLoaded()) {
+            super.appendValue(sb, maxValLen);
+        } else {
+            sb.append(file.getName()).append('@').append(offset);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at http://sourceforge.net/projects/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Gunter Zeilinger, Huetteldorferstr. 24/10, 1150 Vienna/Austria/Europe.
+ * Portions created by the Initial Developer are Copyright (C) 2002-2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Gunter Zeilinger <gunterze@gmail.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che2.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import org.dcm4che2.util.TagUtils;
+
+/**
+ * Element which value is held in a <code>ByteBuffer</code> instead of a
+ * <code>byte[]</code>. Used for bulk data values (e.g. Pixel Data) read from
+ * a memory mapped file: {@link #getByteBuffer()} returns a view of the mapped
+ * region, only {@link #getBytes()} and the typed accessors copy the value
+ * into the Java heap.
+ */
+public class ByteBufferDicomElement extends AbstractDicomElement {
+
+    private static final long serialVersionUID = -2478930551720395136L;
+
+    private static final byte[] NULL_VALUE = {};
+
+    private transient volatile ByteBuffer buffer;
+
+    private transient volatile byte[] value;
+
+    public ByteBufferDicomElement(int tag, VR vr, boolean bigEndian,
+            ByteBuffer buffer) {
+        super(tag, vr, bigEndian);
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the buffer holding the value, positioned at the beginning of
+     * the value. If the element was created without buffer, the value is
+     * loaded by {@link #loadBuffer()} on first access.
+     */
+    protected final ByteBuffer buffer() {
+        ByteBuffer b = buffer;
+        if (b == null) {
+            synchronized (this) {
+                b = buffer;
+                if (b == null) {
+                    buffer = b = loadBuffer();
+                }
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Returns <code>true</code>, if the value is already held in memory or
+     * in a mapped region.
+     */
+    protected final boolean isLoaded() {
+        return buffer != null;
+    }
+
+    /**
+     * Loads the value of elements created without buffer. Subclasses
+     * providing the value on demand have to override this method.
+     */
+    protected ByteBuffer loadBuffer() {
+        throw new IllegalStateException("No value for "
+                + TagUtils.toString(tag));
+    }
+
+    /**
+     * Returns the length of the value in bytes, without padding.
+     */
+    protected int valueLength() {
+        return buffer().remaining();
+    }
+
+    private Object writeReplace() {
+        return new SimpleDicomElement(tag, vr, bigEndian, getBytes(), null);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ByteBufferDicomElement
+                || o instanceof SimpleDicomElement)) {
+            return false;
+        }
+        DicomElement other = (DicomElement) o;
+        return tag == other.tag() && vr == other.vr()
+                && buffer().equals(other.getByteBuffer());
+    }
+
+    public DicomElement share() {
+        return this;
+    }
+
+    @Override
+    protected void appendValue(StringBuffer sb, int maxValLen) {
+        ByteBuffer dup = buffer().duplicate();
+        byte[] head = new byte[Math.min(dup.remaining(), maxValLen + 8)];
+        dup.get(head);
+        vr.promptValue(head, bigEndian, null, new char[64], maxValLen, sb);
+    }
+
+    @Override
+    protected void toggleEndian() {
+        byte[] b = getBytes().clone();
+        vr.toggleEndian(b);
+        value = b;
+        buffer = ByteBuffer.wrap(b);
+    }
+
+    public final int length() {
+        return (valueLength() + 1) & ~1;
+    }
+
+    public final boolean isEmpty() {
+        return valueLength() == 0;
+    }
+
+    public int vm(SpecificCharacterSet cs) {
+        return isEmpty() ? 0 : 1;
+    }
+
+    public byte[] getBytes() {
+        byte[] b = value;
+        if (b == null) {
+            ByteBuffer dup = buffer().duplicate();
+            b = dup.remaining() == 0 ? NULL_VALUE : new byte[dup.remaining()];
+            dup.get(b);
+            value = b;
+        }
+        return b;
+    }
+
+    public ByteBuffer getByteBuffer() {
+        return buffer().asReadOnlyBuffer().order(
+                bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public short[] getShorts(boolean cache) {
+        return vr.toShorts(getBytes(), bigEndian);
+    }
+
+    public int getInt(boolean cache) {
+        return vr.toInt(getBytes(), bigEndian);
+    }
+
+    public int[] getInts(boolean cache) {
+        return vr.toInts(getBytes(), bigEndian);
+    }
+
+    public float getFloat(boolean cache) {
+        return vr.toFloat(getBytes(), bigEndian);
+    }
+
+    public float[] getFloats(boolean cache) {
+        return vr.toFloats(getBytes(), bigEndian);
+    }
+
+    public double getDouble(boolean cache) {
+        return vr.toDouble(getBytes(), bigEndian);
+    }
+
+    public double[] getDoubles(boolean cache) {
+        return vr.toDoubles(getBytes(), bigEndian);
+    }
+
+    public String getString(SpecificCharacterSet cs, boolean cache) {
+        return vr.toString(getBytes(), bigEndian, cs);
+    }
+
+    public String[] getStrings(SpecificCharacterSet cs, boolean cache) {
+        return vr.toStrings(getBytes(), bigEndian, cs);
+    }
+
+    public Date getDate(boolean cache) {
+        return vr.toDate(getBytes());
+    }
+
+    public Date[] getDates(boolean cache) {
+        return vr.toDates(getBytes());
+    }
+
+    public DateRange getDateRange(boolean cache) {
+        return vr.toDateRange(getBytes());
+    }
+
+    public Pattern getPattern(SpecificCharacterSet cs, boolean ignoreCase,
+            boolean cache) {
+        return vr.toPattern(getBytes(), bigEndian, cs, ignoreCase);
+    }
+
+    public final boolean hasItems() {
+        return false;
+    }
+
+    public final boolean hasDicomObjects() {
+        return false;
+    }
+
+    public final boolean hasFragments() {
+        return false;
+    }
+
+    public final int countItems() {
+        return -1;
+    }
+
+    public DicomObject getDicomObject() {
+        throw new UnsupportedOperationException();
+    }
+
+    public DicomObject getDicomObject(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public DicomObject removeDicomObject(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean removeDicomObject(DicomObject item) {
+        throw new UnsupportedOperationException();
+    }
+
+    public DicomObject addDicomObject(DicomObject item) {
+        throw new UnsupportedOperationException();
+    }
+
+    public DicomObject addDicomObject(int index, DicomObject item) {
+        throw new UnsupportedOperationException();
+    }
+
+    public DicomObject setDicomObject(int index, DicomObject item) {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] getFragment(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] removeFragment(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean removeFragment(byte[] b) {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] addFragment(byte[] b) {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] addFragment(int index, byte[] b) {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] setFragment(int index, byte[] b) {
+        throw new UnsupportedOperationException();
+    }
+
+    public DicomElement filterItems(DicomObject filter) {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getValueAsString(SpecificCharacterSet cs, int truncate) {
+        if (isEmpty()) {
+            return null;
+        }
+        StringBuffer sb = new StringBuffer(64);
+        appendValue(sb, truncate);
+        return sb.toString();
+    }
+}
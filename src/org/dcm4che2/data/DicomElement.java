@@ -39,6 +39,7 @@
 package org.dcm4che2.data;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.regex.Pattern;
 
@@ -63,6 +64,14 @@ public interface DicomElement extends Serializable {
 
     byte[] getBytes();
 
+    /**
+     * Returns the value as read-only <code>ByteBuffer</code> with byte order
+     * set according {@link #bigEndian()}. In contrast to {@link #getBytes()},
+     * elements backed by a memory mapped file return a view of the mapped
+     * region, without copying the value into the Java heap.
+     */
+    ByteBuffer getByteBuffer();
+
     boolean hasDicomObjects();
 
     boolean hasFragments();
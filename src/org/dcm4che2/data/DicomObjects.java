@@ -39,6 +39,7 @@ package org.dcm4che2.data;
 
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.regex.Pattern;
@@ -1037,6 +1038,10 @@ public class DicomObjects {
             return e.getBytes();
         }
 
+        public ByteBuffer getByteBuffer() {
+            return e.getByteBuffer();
+        }
+
         public Date getDate(boolean cache) {
             return e.getDate(cache);
         }
@@ -0,0 +1,199 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at http://sourceforge.net/projects/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Gunter Zeilinger, Huetteldorferstr. 24/10, 1150 Vienna/Austria/Europe.
+ * Portions created by the Initial Developer are Copyright (C) 2002-2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Gunter Zeilinger <gunterze@gmail.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che2.data;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Weak interning pool used by {@link DicomElement#share()} to replace equal
+ * element values of different data sets by one instance. The pool is split
+ * into independently locked stripes, so several threads can parse and share
+ * data sets at the same time. Pooled elements are only weakly referenced and
+ * vanish from the pool once no data set uses them anymore.
+ */
+public final class ElementPool {
+
+    /**
+     * Values longer than this are not pooled - they are rarely equal and
+     * expensive to hash and compare.
+     */
+    public static final int MAX_VALUE_LENGTH = 1024;
+
+    private static final int STRIPES = 16;
+
+    private static final ElementPool SHARED = new ElementPool();
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private ElementPool() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Returns the pool used by {@link BasicDicomObject#shareElements()}.
+     */
+    public static ElementPool getSharedPool() {
+        return SHARED;
+    }
+
+    /**
+     * Returns how often an element was replaced by an equal pooled element.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns how often an element was added to the pool.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Returns the number of pooled elements, including elements which are
+     * already garbage collected but not yet expunged.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.count;
+            }
+        }
+        return size;
+    }
+
+    SimpleDicomElement intern(SimpleDicomElement e) {
+        byte[] value = e.getBytes();
+        if (value.length > MAX_VALUE_LENGTH)
+            return e;
+        int hash = e.tag() * 31 + Arrays.hashCode(value);
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return stripes[hash & (STRIPES - 1)].intern(e, hash);
+    }
+
+    private static final class Entry extends WeakReference<SimpleDicomElement> {
+        final int hash;
+        Entry next;
+
+        Entry(SimpleDicomElement e, int hash, Entry next,
+                ReferenceQueue<SimpleDicomElement> queue) {
+            super(e, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    private final class Stripe {
+        final ReferenceQueue<SimpleDicomElement> queue =
+                new ReferenceQueue<SimpleDicomElement>();
+        Entry[] table = new Entry[64];
+        int count;
+
+        synchronized SimpleDicomElement intern(SimpleDicomElement e, int hash) {
+            expungeStaleEntries();
+            // the low bits of hash select the stripe
+            int index = (hash >>> 4) & (table.length - 1);
+            for (Entry entry = table[index]; entry != null; entry = entry.next) {
+                if (entry.hash == hash) {
+                    SimpleDicomElement pooled = entry.get();
+                    if (pooled != null && pooled.equals(e)) {
+                        hits.incrementAndGet();
+                        return pooled;
+                    }
+                }
+            }
+            misses.incrementAndGet();
+            table[index] = new Entry(e, hash, table[index], queue);
+            if (++count > table.length - (table.length >> 2))
+                resize();
+            return e;
+        }
+
+        private void resize() {
+            Entry[] oldTable = table;
+            Entry[] newTable = new Entry[oldTable.length << 1];
+            for (Entry entry : oldTable) {
+                while (entry != null) {
+                    Entry next = entry.next;
+                    int index = (entry.hash >>> 4) & (newTable.length - 1);
+                    entry.next = newTable[index];
+                    newTable[index] = entry;
+                    entry = next;
+                }
+            }
+            table = newTable;
+        }
+
+        private void expungeStaleEntries() {
+            Object ref;
+            while ((ref = queue.poll()) != null) {
+                Entry stale = (Entry) ref;
+                int index = (stale.hash >>> 4) & (table.length - 1);
+                Entry prev = null;
+                for (Entry entry = table[index]; entry != null; 
+                        prev = entry, entry = entry.next) {
+                    if (entry == stale) {
+                        if (prev == null)
+                            table[index] = entry.next;
+                        else
+                            prev.next = entry.next;
+                        --count;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at http://sourceforge.net/projects/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Gunter Zeilinger, Huetteldorferstr. 24/10, 1150 Vienna/Austria/Europe.
+ * Portions created by the Initial Developer are Copyright (C) 2002-2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Gunter Zeilinger <gunterze@gmail.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che2.data;
+
+/**
+ * Element of a numeric VR, which caches decoded single values in primitive
+ * fields instead of boxing them into the <code>Object</code> cache of
+ * {@link SimpleDicomElement}.
+ */
+class NumericDicomElement extends SimpleDicomElement {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INT = 1;
+    private static final int FLOAT = 2;
+    private static final int DOUBLE = 4;
+
+    private transient int intValue;
+    private transient float floatValue;
+    private transient double doubleValue;
+
+    /**
+     * Bit mask of the valid primitive caches. Written after the value, so a
+     * thread which sees a bit also sees the cached value. Concurrent updates
+     * may lose a bit, which only causes the value to be decoded again.
+     */
+    private volatile transient int cached;
+
+    public NumericDicomElement(int tag, VR vr, boolean bigEndian,
+            byte[] value, Object cachedValue) {
+        super(tag, vr, bigEndian, value, cachedValue);
+    }
+
+    static boolean isNumeric(VR vr) {
+        return vr == VR.US || vr == VR.SS || vr == VR.UL || vr == VR.SL
+                || vr == VR.IS || vr == VR.DS || vr == VR.FL || vr == VR.FD;
+    }
+
+    @Override
+    public int getInt(boolean cache) {
+        if (cache && (cached & INT) != 0)
+            return intValue;
+        int val = super.getInt(false);
+        if (cache) {
+            intValue = val;
+            cached |= INT;
+        }
+        return val;
+    }
+
+    @Override
+    public float getFloat(boolean cache) {
+        if (cache && (cached & FLOAT) != 0)
+            return floatValue;
+        float val = super.getFloat(false);
+        if (cache) {
+            floatValue = val;
+            cached |= FLOAT;
+        }
+        return val;
+    }
+
+    @Override
+    public double getDouble(boolean cache) {
+        if (cache && (cached & DOUBLE) != 0)
+            return doubleValue;
+        double val = super.getDouble(false);
+        if (cache) {
+            doubleValue = val;
+            cached |= DOUBLE;
+        }
+        return val;
+    }
+}
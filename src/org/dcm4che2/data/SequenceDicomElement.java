@@ -41,6 +41,7 @@ package org.dcm4che2.data;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -169,6 +170,10 @@ public class SequenceDicomElement extends AbstractDicomElement {
         throw new UnsupportedOperationException();
     }
 
+    public ByteBuffer getByteBuffer() {
+        throw new UnsupportedOperationException();
+    }
+
     public short getShort(boolean cache) {
         throw new UnsupportedOperationException();
     }
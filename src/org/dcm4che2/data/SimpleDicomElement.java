@@ -41,10 +41,10 @@ package org.dcm4che2.data;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.WeakHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -56,8 +56,6 @@ import java.util.regex.Pattern;
 class SimpleDicomElement extends AbstractDicomElement {
 
     private static final long serialVersionUID = 4049072757025092152L;
-    static final WeakHashMap<SimpleDicomElement, WeakReference<SimpleDicomElement>> shared =
-        new WeakHashMap<SimpleDicomElement, WeakReference<SimpleDicomElement>>();
     private static final ThreadLocal<char[]> cbuf = new ThreadLocal<char[]>(){
         @Override
         protected char[] initialValue() {
@@ -80,6 +78,17 @@ class SimpleDicomElement extends AbstractDicomElement {
         this.value = value == null ? NULL_VALUE : value;
         this.cachedValue = cachedValue;
     }
+
+    /**
+     * Creates a new element, which caches decoded values of numeric VRs in
+     * primitive fields.
+     */
+    static SimpleDicomElement valueOf(int tag, VR vr, boolean bigEndian,
+            byte[] value, Object cachedValue) {
+        return NumericDicomElement.isNumeric(vr) 
+                ? new NumericDicomElement(tag, vr, bigEndian, value, cachedValue)
+                : new SimpleDicomElement(tag, vr, bigEndian, value, cachedValue);
+    }
     
     private void writeObject(ObjectOutputStream s)
     throws IOException {
@@ -113,6 +122,9 @@ class SimpleDicomElement extends AbstractDicomElement {
         if (this == o) {
             return true;
         }
+        if (o instanceof ByteBufferDicomElement) {
+            return o.equals(this);
+        }
         if (!(o instanceof SimpleDicomElement)) {
             return false;
         }
@@ -123,17 +135,7 @@ class SimpleDicomElement extends AbstractDicomElement {
     }
     
     public DicomElement share() {
-        synchronized (shared) {
-            WeakReference<SimpleDicomElement> wr = shared.get(this);
-            if (wr != null) {
-                DicomElement e = wr.get();
-                if (e != null) {
-                    return e;
-                }
-            }
-            shared.put(this, new WeakReference<SimpleDicomElement>(this));
-        }
-        return this;
+        return ElementPool.getSharedPool().intern(this);
     }
     
     @Override
@@ -162,6 +164,11 @@ class SimpleDicomElement extends AbstractDicomElement {
         return value;
     }
 
+    public ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap(value).asReadOnlyBuffer().order(
+                bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    }
+
     public short[] getShorts(boolean cache) {
         if (cache) {
             Object tmp = cachedValue;
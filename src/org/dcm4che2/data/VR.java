@@ -39,6 +39,7 @@
 package org.dcm4che2.data;
 
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.StringTokenizer;
 import java.util.regex.Pattern;
@@ -637,6 +638,15 @@ public abstract class VR {
         }
     }
 
+    private static final class UNKNOWN extends VR 
+    {
+
+        private UNKNOWN()
+        {
+            super(0, 0, 8);
+        }
+    }
+
     private static final class AE extends ASCIIVR
     {
 
@@ -2311,68 +2321,57 @@ public abstract class VR {
     /** Unlimited Text (<= 4294967294 chars)*/
     public static final VR UT = new UT();
 
+    /**
+     * Sentinel returned by {@link #forCode(int)} for codes which do not
+     * denote a valid VR. Never assigned to an element.
+     */
+    public static final VR UNKNOWN = new UNKNOWN();
+
+    /**
+     * Lookup table for VR codes consisting of two upper case letters,
+     * indexed by {@link #codeIndex(int)}. Unused slots hold {@link #UNKNOWN}.
+     */
+    private static final VR[] CODE_TABLE = new VR[26 * 26];
+
+    static
+    {
+        Arrays.fill(CODE_TABLE, UNKNOWN);
+        VR[] vrs = { AE, AS, AT, CS, DA, DS, DT, FL, FD, IS, LO, LT, OB, OF,
+                OW, PN, SH, SL, SQ, SS, ST, TM, UI, UL, UN, US, UT };
+        for (VR vr : vrs)
+            CODE_TABLE[codeIndex(vr.code)] = vr;
+    }
+
+    private static int codeIndex(int code)
+    {
+        final int c1 = (code >> 8) - 'A';
+        final int c2 = (code & 0xff) - 'A';
+        return (c1 < 0 || c1 >= 26 || c2 < 0 || c2 >= 26) ? -1 : c1 * 26 + c2;
+    }
+
+    /**
+     * Table driven lookup of the VR for the given code. In contrast to
+     * {@link #valueOf(int)}, no exception is thrown for unknown codes.
+     * 
+     * @param code
+     *            VR code as read from the element header
+     * @return VR or {@link #UNKNOWN}, if the code is unknown
+     */
+    public static VR forCode(int code)
+    {
+        final int index = codeIndex(code);
+        if (index < 0)
+            return code == 0x3F3F ? UN_SIEMENS : UNKNOWN;
+        return CODE_TABLE[index];
+    }
+
     public static VR valueOf(int code)
     {
-        switch (code)
-        {
-        case 0x3F3F:
-            return UN_SIEMENS;
-        case 0x4145:
-            return AE;
-        case 0x4153:
-            return AS;
-        case 0x4154:
-            return AT;
-        case 0x4353:
-            return CS;
-        case 0x4441:
-            return DA;
-        case 0x4453:
-            return DS;
-        case 0x4454:
-            return DT;
-        case 0x4644:
-            return FD;
-        case 0x464c:
-            return FL;
-        case 0x4953:
-            return IS;
-        case 0x4c4f:
-            return LO;
-        case 0x4c54:
-            return LT;
-        case 0x4f42:
-            return OB;
-        case 0x4f46:
-            return OF;
-        case 0x4f57:
-            return OW;
-        case 0x504e:
-            return PN;
-        case 0x5348:
-            return SH;
-        case 0x534c:
-            return SL;
-        case 0x5351:
-            return SQ;
-        case 0x5353:
-            return SS;
-        case 0x5354:
-            return ST;
-        case 0x544d:
-            return TM;
-        case 0x5549:
-            return UI;
-        case 0x554c:
-            return UL;
-        case 0x554E:
-            return UN;
-        case 0x5553:
-            return US;
-        case 0x5554:
-            return UT;
-        }
-        throw new IllegalArgumentException("vr:" + StringUtils.shortToHex(code));
+        VR vr = forCode(code);
+        if (vr == UNKNOWN)
+            throw new IllegalArgumentException("vr:"
+                    + StringUtils.shortToHex(code));
+        return vr;
     }
 
     protected final int code;
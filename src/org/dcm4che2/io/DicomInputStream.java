@@ -47,13 +47,18 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.BulkDataDicomElement;
+import org.dcm4che2.data.ByteBufferDicomElement;
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.SortedDicomObject;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.TransferSyntax;
 import org.dcm4che2.data.VR;
@@ -100,6 +105,16 @@ public class DicomInputStream extends FilterInputStream implements
     private int vallen;
 
     private boolean stopAtFmiEnd;
+
+    private int mappedValueThreshold = 1024;
+
+    private File bulkDataFile;
+
+    private int bulkDataThreshold = -1;
+
+    private int[] bulkDataTags = {};
+
+    private int unknownVRCount;
     
     
     private void setVallen(int value)
@@ -126,6 +141,7 @@ public class DicomInputStream extends FilterInputStream implements
 
     public DicomInputStream(File f) throws IOException {
         super(new BufferedInputStream(new FileInputStream(f)));
+        this.bulkDataFile = f;
         try {
             this.ts = guessTransferSyntax();
         } catch (IOException e) {
@@ -134,6 +150,28 @@ public class DicomInputStream extends FilterInputStream implements
         }
     }
 
+    /**
+     * Creates a <code>DicomInputStream</code> reading from the bytes between
+     * the position and the limit of <code>buffer</code>, typically a
+     * read-only memory mapping of a whole file held by the caller. Headers
+     * are parsed directly out of the buffer and OB, OF, OW and UN values
+     * with a length of at least {@link #getMappedValueThreshold()} are put
+     * into the <code>DicomObject</code> as {@link ByteBufferDicomElement}s
+     * referring to the buffer, instead of being copied into the Java heap.
+     * Stream positions count from the start of <code>buffer</code>. The
+     * position of <code>buffer</code> is not changed.
+     * 
+     * @param buffer
+     *            bytes of the DICOM stream
+     * @throws IOException
+     *             if the buffer does not hold a DICOM stream.
+     */
+    public DicomInputStream(ByteBuffer buffer) throws IOException {
+        super(new MappedInputStreamAdapter(buffer.duplicate()));
+        pos = buffer.position();
+        this.ts = guessTransferSyntax();
+    }
+
 //    public DicomInputStream(ImageInputStream iis, TransferSyntax ts)
 //    throws IOException {
 //        this(new ImageInputStreamAdapter(iis), ts);
@@ -186,6 +224,94 @@ public class DicomInputStream extends FilterInputStream implements
         this.fmiEndPos = fmiEndPos;
     }
 
+    /**
+     * Returns <code>true</code>, if this stream reads from a memory mapped
+     * file and bulk data values are returned as views of the mapped region.
+     */
+    public final boolean isMapped() {
+        return in instanceof MappedInputStreamAdapter;
+    }
+
+    public final int getMappedValueThreshold() {
+        return mappedValueThreshold;
+    }
+
+    /**
+     * Sets the minimal length of OB, OF, OW and UN values, which are not
+     * copied, but referenced as slices of the mapped region. Only effective
+     * for streams created by {@link #DicomInputStream(ByteBuffer)}.
+     * 
+     * @param threshold
+     *            minimal value length in bytes. Default: 1024.
+     */
+    public final void setMappedValueThreshold(int threshold) {
+        this.mappedValueThreshold = threshold;
+    }
+
+    public final File getBulkDataFile() {
+        return bulkDataFile;
+    }
+
+    /**
+     * Sets the file this stream reads from, so bulk data values can be
+     * referenced by offset in this file. The current stream position must
+     * correspond to the file offset (s. {@link #setStreamPosition(long)}).
+     * Set automatically by {@link #DicomInputStream(File)}.
+     * 
+     * @param file
+     *            file this stream reads from or <code>null</code>.
+     */
+    public final void setBulkDataFile(File file) {
+        this.bulkDataFile = file;
+    }
+
+    public final int getBulkDataThreshold() {
+        return bulkDataThreshold;
+    }
+
+    /**
+     * Sets the minimal length of OB, OF, OW and UN values, which are not read
+     * but put into the <code>DicomObject</code> as
+     * {@link BulkDataDicomElement} referring to file, offset and length of
+     * the value. The value is then loaded on first access. Only effective if
+     * the bulk data file is known.
+     * 
+     * @param threshold
+     *            minimal value length in bytes or <code>-1</code> to read all
+     *            values not listed by {@link #setBulkDataTags(int[])}.
+     *            Default: -1.
+     */
+    public final void setBulkDataThreshold(int threshold) {
+        this.bulkDataThreshold = threshold;
+    }
+
+    public final int[] getBulkDataTags() {
+        return bulkDataTags.clone();
+    }
+
+    /**
+     * Sets tags of elements which are referenced by
+     * {@link BulkDataDicomElement} regardless of their VR and length, e.g.
+     * {@link Tag#PixelData}. Only effective if the bulk data file is known.
+     * 
+     * @param tags
+     *            tags of elements not to read.
+     */
+    public final void setBulkDataTags(int... tags) {
+        int[] tmp = tags.clone();
+        Arrays.sort(tmp);
+        this.bulkDataTags = tmp;
+    }
+
+    private boolean isBulkData() {
+        if (bulkDataFile == null || in instanceof InflaterInputStream)
+            return false;
+        if (Arrays.binarySearch(bulkDataTags, tag) >= 0)
+            return true;
+        return bulkDataThreshold >= 0 && vallen >= bulkDataThreshold
+                && vr instanceof VR.Fragment;
+    }
+
     public final void setHandler(DicomInputHandler handler) {
         if (handler == null)
             throw new NullPointerException();
@@ -208,6 +334,16 @@ public class DicomInputStream extends FilterInputStream implements
         return vr;
     }
 
+    /**
+     * Returns how often an invalid VR code in an explicit VR element header
+     * was replaced by the VR of the attribute dictionary.
+     * 
+     * @return number of VR fallbacks since this stream was created
+     */
+    public final int getUnknownVRCount() {
+        return unknownVRCount;
+    }
+
     public final DicomElement sq() {
         return sqStack.get(sqStack.size() - 1);
     }
@@ -324,6 +460,8 @@ public class DicomInputStream extends FilterInputStream implements
     }
 
     public int readHeader() throws IOException {
+        if (ts.explicitVR() && !ts.bigEndian() && !expectFmiEnd)
+            return readExplicitVRLittleEndianHeader();
         tagpos = pos;
         readFully(header, 0, 8);
         tag = ts.bigEndian() ? ByteUtils.bytesBE2tag(header, 0) : ByteUtils
@@ -343,16 +481,9 @@ public class DicomInputStream extends FilterInputStream implements
         }
         vr = null;
         if (TagUtils.hasVR(tag) && ts.explicitVR()) {
-            try {
-            	int code = ((header[4] & 0xff) << 8) | (header[5] & 0xff);
-            	//System.out.println("VR.valueOf " + Integer.toHexString(code) + " tag: " + Integer.toHexString(tag));
-                vr = VR.valueOf(((header[4] & 0xff) << 8) | (header[5] & 0xff));
-            } catch (IllegalArgumentException e) {                
-                vr = attrs.vrOf(tag);
-//                log.warn("Catch " + e + " for attribute " 
-//                        + TagUtils.toString(tag) + " at pos: " + tagpos
-//                        + " - assume " + vr);
-            }
+            vr = VR.forCode(((header[4] & 0xff) << 8) | (header[5] & 0xff));
+            if (vr == VR.UNKNOWN)
+                vr = vrOfUnknownCode();
             if (vr.explicitVRHeaderLength() == 8) {
                 int vallen = ts.bigEndian() ? ByteUtils.bytesBE2ushort(header, 6): ByteUtils.bytesLE2ushort(header, 6);
                 
@@ -373,6 +504,43 @@ public class DicomInputStream extends FilterInputStream implements
         return tag;
     }
 
+    /**
+     * Fast path of {@link #readHeader()} for the most common case of Explicit
+     * VR Little Endian encoded data sets: no byte order branches, table driven
+     * VR lookup without exceptions and no allocations.
+     */
+    private int readExplicitVRLittleEndianHeader() throws IOException {
+        final byte[] h = header;
+        tagpos = pos;
+        readFully(h, 0, 8);
+        final int tag = ByteUtils.bytesLE2tag(h, 0);
+        this.tag = tag;
+        if (!TagUtils.hasVR(tag)) {
+            vr = null;
+            vallen = ByteUtils.bytesLE2int(h, 4);
+            return tag;
+        }
+        VR vr = VR.forCode(((h[4] & 0xff) << 8) | (h[5] & 0xff));
+        if (vr == VR.UNKNOWN)
+            vr = vrOfUnknownCode();
+        if (vr.explicitVRHeaderLength() == 8) {
+            vallen = ByteUtils.bytesLE2ushort(h, 6);
+            this.vr = vr == VR.UN_SIEMENS ? VR.UN : vr;
+            return tag;
+        }
+        this.vr = vr;
+        readFully(h, 4, 4);
+        vallen = ByteUtils.bytesLE2int(h, 4);
+        return tag;
+    }
+
+    private VR vrOfUnknownCode() {
+        ++unknownVRCount;
+//        log.warn("Invalid VR code for attribute " + TagUtils.toString(tag)
+//                + " at pos: " + tagpos + " - assume " + attrs.vrOf(tag));
+        return attrs.vrOf(tag);
+    }
+
     public void readItem(DicomObject dest) throws IOException {
         dest.setItemOffset(pos);
         if (readHeader() != Tag.Item)
@@ -458,7 +626,10 @@ public class DicomInputStream extends FilterInputStream implements
         int tag0 = 0;
         while (!quit && tag0 != endTag && pos < endPos) 
         {
-            mark(12);
+            // only needed to step back in front of the first data set
+            // element, if we stop at the end of File Meta Information
+            if (stopAtFmiEnd)
+                mark(12);
             try 
             {
                 tag0 = readHeader();
@@ -568,6 +739,19 @@ public class DicomInputStream extends FilterInputStream implements
                 DicomElement a = vr == VR.SQ ? attrs.putSequence(tag) : attrs.putFragments(tag, vr, ts.bigEndian());
                 readItems(a, vallen);
             } 
+            else if (vallen > 0 && isBulkData())
+            {
+                attrs.add(new BulkDataDicomElement(tag, vr, ts.bigEndian(),
+                        bulkDataFile, pos, vallen));
+                skipFully(vallen);
+            }
+            else if (vallen >= mappedValueThreshold && isMapped()
+                    && vr instanceof VR.Fragment)
+            {
+                DicomElement a = new ByteBufferDicomElement(tag, vr,
+                        ts.bigEndian(), readBuffer(vallen));
+                attrs.add(a);
+            }
             else 
             {
                 DicomElement a = attrs.putBytes(tag, vr, readBytes(vallen), ts.bigEndian());
@@ -614,7 +798,8 @@ public class DicomInputStream extends FilterInputStream implements
             }
         }
         if (sq.vr() == VR.SQ) {
-            BasicDicomObject item = new BasicDicomObject();
+            BasicDicomObject item = attrs instanceof SortedDicomObject
+                    ? new SortedDicomObject() : new BasicDicomObject();
             item.setParent(attrs);
             item.setItemOffset(tagpos);
             readDicomObject(item, vallen);
@@ -624,6 +809,20 @@ public class DicomInputStream extends FilterInputStream implements
         }
     }
 
+    /**
+     * Reads the next <code>vallen</code> bytes. If this stream reads from a
+     * memory mapped file, the returned buffer is a read-only view of the
+     * mapped region, otherwise it wraps a newly allocated
+     * <code>byte[]</code>.
+     */
+    public ByteBuffer readBuffer(int vallen) throws IOException {
+        if (!isMapped())
+            return ByteBuffer.wrap(readBytes(vallen));
+        ByteBuffer val = ((MappedInputStreamAdapter) in).slice(vallen);
+        pos += vallen;
+        return val;
+    }
+
     public byte[] readBytes(int vallen) throws IOException {
         if (vallen == 0)
             return EMPTY_BYTES;
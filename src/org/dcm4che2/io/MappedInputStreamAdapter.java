@@ -0,0 +1,118 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at http://sourceforge.net/projects/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Gunter Zeilinger, Huetteldorferstr. 24/10, 1150 Vienna/Austria/Europe.
+ * Portions created by the Initial Developer are Copyright (C) 2002-2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Gunter Zeilinger <gunterze@gmail.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che2.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <code>InputStream</code> view of a (memory mapped) <code>ByteBuffer</code>.
+ * Besides the usual stream operations, it allows to take read-only slices of
+ * the underlying buffer without copying the bytes into the Java heap.
+ */
+class MappedInputStreamAdapter extends InputStream {
+	private final ByteBuffer buf;
+	private int markedPos;
+
+	public MappedInputStreamAdapter(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	@Override
+	public int read() {
+		return buf.hasRemaining() ? buf.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		int remaining = buf.remaining();
+		if (remaining == 0)
+			return -1;
+		if (len > remaining)
+			len = remaining;
+		buf.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0)
+			return 0;
+		int count = (int) Math.min(n, buf.remaining());
+		buf.position(buf.position() + count);
+		return count;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		markedPos = buf.position();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void reset() {
+		buf.position(markedPos);
+	}
+
+	/**
+	 * Returns a read-only view of the next <code>len</code> bytes and
+	 * advances the stream position by <code>len</code>.
+	 */
+	public ByteBuffer slice(int len) throws IOException {
+		if (len > buf.remaining())
+			throw new EOFException();
+		ByteBuffer dup = buf.duplicate();
+		dup.limit(dup.position() + len);
+		buf.position(buf.position() + len);
+		return dup.slice().asReadOnlyBuffer();
+	}
+}
@@ -48,7 +48,7 @@ import java.util.NoSuchElementException;
  * @param <T>
  *            the value type.
  */
-public class IntHashtable<T> {
+public class IntHashtable<T> implements IntTable<T> {
 
     private static final float HIGH_WATER_FACTOR = 0.4F;
     private static final float LOW_WATER_FACTOR = 0.0F;
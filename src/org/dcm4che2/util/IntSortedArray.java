@@ -0,0 +1,258 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at http://sourceforge.net/projects/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Gunter Zeilinger, Huetteldorferstr. 24/10, 1150 Vienna/Austria/Europe.
+ * Portions created by the Initial Developer are Copyright (C) 2002-2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Gunter Zeilinger <gunterze@gmail.com>
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che2.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Table implementation, which keeps integer keys and values in parallel
+ * arrays sorted by the unsigned value of the key. Keys put in ascending
+ * order - as data elements are read from a stream - are appended without
+ * any search; lookups use binary search. Compared to {@link IntHashtable},
+ * no slots are wasted for open addressing and iteration does not require
+ * to sort the keys first.
+ * 
+ * @param <T>
+ *            the value type.
+ */
+public class IntSortedArray<T> implements IntTable<T> {
+
+    private int[] keys;
+    private T[] values;
+    private int count;
+
+    public IntSortedArray() {
+        this(10);
+    }
+
+    @SuppressWarnings("unchecked")
+    public IntSortedArray(int initialSize) {
+        keys = new int[initialSize];
+        values = (T[]) new Object[keys.length];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+    }
+
+    public void put(int key, T value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        if (count == 0 || compare(key, keys[count - 1]) > 0) {
+            insert(count, key, value);
+            return;
+        }
+        int index = indexOf(key);
+        if (index >= 0) {
+            values[index] = value;
+        } else {
+            insert(-(index + 1), key, value);
+        }
+    }
+
+    public T get(int key) {
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    public Object remove(int key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        T retval = values[index];
+        int n = --count - index;
+        System.arraycopy(keys, index + 1, keys, index, n);
+        System.arraycopy(values, index + 1, values, index, n);
+        values[count] = null;
+        return retval;
+    }
+
+    /**
+     * Shrinks the capacity of the table to its current size.
+     */
+    public void trimToSize() {
+        if (count < keys.length) {
+            resize(count);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean equals(Object that) {
+        if (!(that instanceof IntSortedArray))
+            return false;
+
+        IntSortedArray<T> other = (IntSortedArray<T>) that;
+        if (other.count != count) {
+            return false;
+        }
+        for (int i = 0; i < count; ++i) {
+            if (keys[i] != other.keys[i] || !values[i].equals(other.values[i]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the same hash code as an {@link IntHashtable} with equal
+     * content.
+     */
+    @Override
+    public int hashCode() {
+        int h = 0;
+        T v0 = null;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == 0)
+                v0 = values[i];
+            else
+                h += keys[i] ^ values[i].hashCode();
+        }
+        if (v0 != null) {
+            h = 37 * h + v0.hashCode();
+        }
+        return h;
+    }
+
+    public boolean accept(IntHashtable.Visitor visitor) {
+        for (int i = 0; i < count; i++) {
+            if (!visitor.visit(keys[i], values[i]))
+                return false;
+        }
+        return true;
+    }
+
+    public Iterator<T> iterator(int start, int end) {
+        if (compare(start, end) > 0)
+            throw new IllegalArgumentException("start:" + start + ", end:"
+                    + end);
+        int from = indexOf(start);
+        if (from < 0)
+            from = -(from + 1);
+        int to = indexOf(end);
+        to = to < 0 ? -(to + 1) : to + 1;
+        return new Itr(from, to);
+    }
+
+    private void insert(int index, int key, T value) {
+        if (count == keys.length) {
+            resize(count + (count >> 1) + 1);
+        }
+        if (index < count) {
+            System.arraycopy(keys, index, keys, index + 1, count - index);
+            System.arraycopy(values, index, values, index + 1, count - index);
+        }
+        keys[index] = key;
+        values[index] = value;
+        ++count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize(int length) {
+        int[] newKeys = new int[length];
+        T[] newValues = (T[]) new Object[length];
+        System.arraycopy(keys, 0, newKeys, 0, count);
+        System.arraycopy(values, 0, newValues, 0, count);
+        keys = newKeys;
+        values = newValues;
+    }
+
+    /**
+     * Binary search for the key in unsigned order.
+     * 
+     * @return index of the key, or <code>-(insertion point) - 1</code>
+     */
+    private int indexOf(int key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(keys[mid], key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    private static int compare(int key1, int key2) {
+        final int k1 = key1 ^ Integer.MIN_VALUE;
+        final int k2 = key2 ^ Integer.MIN_VALUE;
+        return k1 < k2 ? -1 : k1 == k2 ? 0 : 1;
+    }
+
+    private final class Itr implements Iterator<T> {
+        int index;
+        final int endIndex;
+
+        private Itr(int index, int endIndex) {
+            this.index = index;
+            this.endIndex = endIndex;
+        }
+
+        public boolean hasNext() {
+            return index < endIndex && index < count;
+        }
+
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return values[index++];
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}